@@ -0,0 +1,154 @@
+package pl.allegro.search.solr.qparser.benchmark;
+
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.Sort;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortSpecParsing;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.RefCounted;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generated index of a core running the configuration of the functional tests, documents have a string
+ * (<code>variant</code>) and a numeric (<code>variant_hash</code>) key of the same group and a random price.
+ * <p>
+ * Group sizes follow the Zipf distribution with the given exponent (0 is uniform), so a few groups are large
+ * and most are small as in a real catalogue, and the given ratio of documents has no key at all.
+ */
+class BenchmarkIndex implements AutoCloseable {
+
+    private static final String CORE = "benchmark";
+    private static final int BATCH_SIZE = 10_000;
+    private static final long SEED = 42L;
+
+    private final Path solrHome;
+    private final CoreContainer container;
+    private final SolrCore core;
+    private final RefCounted<SolrIndexSearcher> searcher;
+
+    BenchmarkIndex(int documents, int groups, double zipfExponent, double nullRatio) throws IOException, SolrServerException {
+        System.setProperty("solr.tests.maxBufferedDocs", "100000");
+        System.setProperty("solr.tests.ramBufferSizeMB", "64");
+        this.solrHome = createSolrHome();
+        this.container = new CoreContainer(solrHome, new Properties());
+        container.load();
+        try (EmbeddedSolrServer server = new EmbeddedSolrServer(container, CORE) {
+            @Override
+            public void close() {
+                // the container is closed with the index
+            }
+        }) {
+            index(server, documents, groups, zipfExponent, nullRatio);
+        }
+        this.core = container.getCore(CORE);
+        this.searcher = core.getSearcher();
+    }
+
+    SolrIndexSearcher searcher() {
+        return searcher.get();
+    }
+
+    FieldType fieldType(String field) {
+        return core.getLatestSchema().getFieldType(field);
+    }
+
+    Sort sort(String sortSpec) {
+        try (LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            return SortSpecParsing.parseSortSpec(sortSpec, req).getSort();
+        }
+    }
+
+    ValueSource valueSource(String function) throws SyntaxError {
+        try (LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            return new FunctionQParser(function, null, req.getParams(), req).parseValueSource();
+        }
+    }
+
+    private static Path createSolrHome() throws IOException {
+        Path home = Files.createTempDirectory("collapse-benchmark");
+        Path conf = Files.createDirectories(home.resolve(CORE).resolve("conf"));
+        for (String resource : Arrays.asList("solrconfig.xml", "schema.xml")) {
+            try (InputStream in = BenchmarkIndex.class.getClassLoader().getResourceAsStream(resource)) {
+                Files.copy(in, conf.resolve(resource));
+            }
+        }
+        Files.write(home.resolve("solr.xml"), "<solr/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(home.resolve(CORE).resolve("core.properties"), ("name=" + CORE + "\n").getBytes(StandardCharsets.UTF_8));
+        return home;
+    }
+
+    private static void index(EmbeddedSolrServer server, int documents, int groups, double zipfExponent, double nullRatio)
+            throws IOException, SolrServerException {
+        Random random = new Random(SEED);
+        double[] cumulative = zipfCumulative(groups, zipfExponent);
+        List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+        for (int id = 0; id < documents; id++) {
+            SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", Integer.toString(id));
+            document.addField("price", random.nextInt(100_000) / 100f);
+            if (random.nextDouble() >= nullRatio) {
+                long key = sample(cumulative, random) + 1L;
+                document.addField("variant", Long.toString(key));
+                document.addField("variant_hash", key);
+            }
+            batch.add(document);
+            if (batch.size() == BATCH_SIZE) {
+                server.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            server.add(batch);
+        }
+        server.commit();
+    }
+
+    private static double[] zipfCumulative(int groups, double exponent) {
+        double[] cumulative = new double[groups];
+        double sum = 0;
+        for (int rank = 0; rank < groups; rank++) {
+            sum += 1d / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < groups; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        searcher.decref();
+        core.close();
+        container.shutdown();
+        try (Stream<Path> files = Files.walk(solrHome)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pl.allegro.search.solr.qparser.benchmark;
+
+import org.apache.lucene.search.FastCollapsingQueryFilter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.allegro.search.solr.qparser.CollapsingQueryFilter;
+import pl.allegro.search.solr.qparser.SumCollapsingQueryFilter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole collapse of all documents of a generated index by every filter, as run by Solr for a request:
+ * the post filter collects the matches and replays the heads to a top field collector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollapseFilterBenchmark {
+
+    private static final int ROWS = 60;
+
+    @Param({"100000", "1000000"})
+    public int hits;
+
+    @Param({"1000", "100000"})
+    public int groups;
+
+    @Param({"0", "1.1"})
+    public double zipfExponent;
+
+    @Param({"0", "0.2"})
+    public double nullRatio;
+
+    @Param({"1", "2"})
+    public int sortArity;
+
+    @Param({"string", "numeric"})
+    public String keys;
+
+    private BenchmarkIndex index;
+    private SolrIndexSearcher searcher;
+    private String field;
+    private FieldType fieldType;
+    private Sort sort;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        index = new BenchmarkIndex(hits, groups, zipfExponent, nullRatio);
+        searcher = index.searcher();
+        field = "string".equals(keys) ? "variant" : "variant_hash";
+        fieldType = index.fieldType(field);
+        sort = index.sort(sortArity == 1 ? "price asc" : "price asc,id desc");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public TopDocs fastCollapse() throws IOException {
+        return collapse(new FastCollapsingQueryFilter(field, fieldType, sort, ROWS, false, new HashMap<>()), sort);
+    }
+
+    @Benchmark
+    public TopDocs fastCollapseExactCount() throws IOException {
+        return collapse(new FastCollapsingQueryFilter(field, fieldType, sort, ROWS, true, new HashMap<>()), sort);
+    }
+
+    @Benchmark
+    public TopDocs collapse() throws IOException {
+        return collapse(new CollapsingQueryFilter(field, fieldType, sort, new HashMap<>()), sort);
+    }
+
+    @Benchmark
+    public TopDocs sumCollapse() throws IOException {
+        return collapse(new SumCollapsingQueryFilter(field, fieldType, new HashMap<>()), Sort.INDEXORDER);
+    }
+
+    private TopDocs collapse(PostFilter filter, Sort topSort) throws IOException {
+        DelegatingCollector collector = filter.getFilterCollector(searcher);
+        TopFieldCollector topDocsCollector = TopFieldCollector.create(searcher.weightSort(topSort), ROWS, Integer.MAX_VALUE);
+        collector.setDelegate(topDocsCollector);
+        searcher.search(new MatchAllDocsQuery(), collector);
+        collector.finish();
+        return topDocsCollector.topDocs();
+    }
+}
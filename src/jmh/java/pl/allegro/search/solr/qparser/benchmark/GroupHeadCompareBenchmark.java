@@ -0,0 +1,95 @@
+package pl.allegro.search.solr.qparser.benchmark;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortFieldsCompare;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.allegro.search.solr.qparser.SortedDocValuesHash;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choosing heads of groups with {@link SortFieldsCompare#testAndSetGroupValues(int, int)} for every document,
+ * with groups numbered in advance, so only the comparison of sort values is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupHeadCompareBenchmark {
+
+    @Param({"1000000"})
+    public int hits;
+
+    @Param({"1000", "100000"})
+    public int groups;
+
+    @Param({"0", "1.1"})
+    public double zipfExponent;
+
+    @Param({"1", "2"})
+    public int sortArity;
+
+    private BenchmarkIndex index;
+    private List<LeafReaderContext> leaves;
+    private int[][] groupIds;
+    private SortField[] sortFields;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        index = new BenchmarkIndex(hits, groups, zipfExponent, 0);
+        SolrIndexSearcher searcher = index.searcher();
+        leaves = searcher.getTopReaderContext().leaves();
+        sortFields = searcher.weightSort(index.sort(sortArity == 1 ? "price asc" : "price asc,id desc")).getSort();
+        // keys of the generated index are numbers of groups starting from 1
+        groupIds = new int[leaves.size()][];
+        for (LeafReaderContext leaf : leaves) {
+            SortedDocValuesHash hash = SortedDocValuesHash.create(leaf, "variant_hash", SortedDocValuesHash.KeyType.NUMERIC, null);
+            int[] ids = new int[leaf.reader().maxDoc()];
+            for (int doc = 0; doc < ids.length; doc++) {
+                // the index has no documents without a key
+                hash.advanceExact(doc);
+                ids[doc] = (int) hash.key() - 1;
+            }
+            groupIds[leaf.ord] = ids;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public int testAndSetGroupValues() throws IOException {
+        SortFieldsCompare compare = new SortFieldsCompare(sortFields, groups);
+        int replacedHeads = 0;
+        for (LeafReaderContext leaf : leaves) {
+            compare.setNextReader(leaf);
+            int[] ids = groupIds[leaf.ord];
+            for (int doc = 0; doc < ids.length; doc++) {
+                if (compare.testAndSetGroupValues(ids[doc], doc)) {
+                    replacedHeads++;
+                }
+            }
+        }
+        return replacedHeads;
+    }
+}
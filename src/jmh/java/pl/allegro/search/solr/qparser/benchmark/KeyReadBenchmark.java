@@ -0,0 +1,96 @@
+package pl.allegro.search.solr.qparser.benchmark;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.allegro.search.solr.qparser.FunctionKeys;
+import pl.allegro.search.solr.qparser.SortedDocValuesHash;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the collapse key of every document with {@link SortedDocValuesHash#advanceExact(int)} and
+ * {@link SortedDocValuesHash#key()}: global ordinals of a string field, values of a numeric field, and the same
+ * numeric field through a function query with and without memoization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyReadBenchmark {
+
+    @Param({"1000000"})
+    public int hits;
+
+    @Param({"1000", "100000"})
+    public int groups;
+
+    @Param({"0", "0.2"})
+    public double nullRatio;
+
+    @Param({"string", "numeric", "function", "memoizedFunction"})
+    public String keys;
+
+    private BenchmarkIndex index;
+    private SolrIndexSearcher searcher;
+    private OrdinalMap ordinalMap;
+    private FunctionKeys functionKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        index = new BenchmarkIndex(hits, groups, 1.1, nullRatio);
+        searcher = index.searcher();
+        if ("string".equals(keys)) {
+            ordinalMap = SortedDocValuesHash.getOrdinalMap(searcher, "variant", SortedDocValuesHash.KeyType.ORDINAL);
+        } else if ("function".equals(keys) || "memoizedFunction".equals(keys)) {
+            functionKeys = new FunctionKeys(index.valueSource("field(variant_hash)"), searcher, "memoizedFunction".equals(keys));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public long readKeys() throws IOException {
+        long checksum = 0;
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            SortedDocValuesHash hash = create(leaf);
+            int maxDoc = leaf.reader().maxDoc();
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (hash.advanceExact(doc)) {
+                    checksum += hash.key();
+                }
+            }
+        }
+        return checksum;
+    }
+
+    private SortedDocValuesHash create(LeafReaderContext leaf) throws IOException {
+        switch (keys) {
+            case "string":
+                return SortedDocValuesHash.create(leaf, "variant", SortedDocValuesHash.KeyType.ORDINAL, ordinalMap);
+            case "numeric":
+                return SortedDocValuesHash.create(leaf, "variant_hash", SortedDocValuesHash.KeyType.NUMERIC, null);
+            default:
+                return functionKeys.create(leaf);
+        }
+    }
+}
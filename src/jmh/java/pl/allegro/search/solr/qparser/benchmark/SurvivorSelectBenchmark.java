@@ -0,0 +1,76 @@
+package pl.allegro.search.solr.qparser.benchmark;
+
+import org.apache.lucene.search.SurvivorSelector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking blocks of decoded sort values against the queue bottom with {@link SurvivorSelector}, in blocks of the size
+ * of the batches of {@link org.apache.lucene.search.FastCollapsingQueryFilter}: the selected loop (the Vector API when
+ * run on Java 16 or later with <code>-Pjava16Home</code>) and the scalar one, for different ratios of survivors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SurvivorSelectBenchmark {
+
+    private static final int BLOCK = 64;
+
+    @Param({"1000000"})
+    public int hits;
+
+    @Param({"0.001", "0.05", "0.5"})
+    public double survivorRatio;
+
+    private double[][] blocks;
+    private int[] survivors;
+    private double bottom;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(0);
+        blocks = new double[hits / BLOCK][BLOCK];
+        for (double[] block : blocks) {
+            for (int i = 0; i < BLOCK; i++) {
+                block[i] = random.nextDouble();
+            }
+        }
+        survivors = new int[BLOCK];
+        // ascending sort: documents with values above the bottom are rejected
+        bottom = survivorRatio;
+    }
+
+    @Benchmark
+    public int select() {
+        int count = 0;
+        for (double[] block : blocks) {
+            count += SurvivorSelector.select(block, BLOCK, 1d, bottom, survivors);
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int selectScalar() {
+        int count = 0;
+        for (double[] block : blocks) {
+            count += SurvivorSelector.selectScalar(block, BLOCK, 1d, bottom, survivors);
+        }
+        return count;
+    }
+}
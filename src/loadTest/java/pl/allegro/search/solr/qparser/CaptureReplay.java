@@ -0,0 +1,182 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.SolrQueryResponse;
+import org.noggit.ObjectBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Replays requests captured by {@link CollapseCapture} against a local copy of an index and reports latency
+ * and allocation per query shape, next to the latency captured in production.
+ * <p>
+ * Usage: <code>CaptureReplay SOLR_HOME CORE CAPTURE_FILE... [--handler /select] [--repeat N]
+ * [--param name=value]... [--localParam name=value]...</code>
+ * <p>
+ * <code>--param</code> overrides a request parameter and <code>--localParam</code> adds a local parameter
+ * to every <code>{!fastCollapse}</code> filter, e.g. <code>--localParam batch=true</code>, to compare strategies.
+ */
+public class CaptureReplay {
+
+    private static final String FAST_COLLAPSE = "{!fastCollapse";
+
+    private final List<String> localParams = new ArrayList<>();
+    private final ModifiableSolrParams overrides = new ModifiableSolrParams();
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final Map<String, Shape> shapes = new TreeMap<>();
+    private String handlerName = "/select";
+    private int repeat = 1;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: CaptureReplay SOLR_HOME CORE CAPTURE_FILE... [--handler /select] [--repeat N] "
+                    + "[--param name=value]... [--localParam name=value]...");
+            System.exit(1);
+        }
+        CaptureReplay replay = new CaptureReplay();
+        List<String> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--handler":
+                    replay.handlerName = args[++i];
+                    break;
+                case "--repeat":
+                    replay.repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--param":
+                    String[] param = args[++i].split("=", 2);
+                    replay.overrides.set(param[0], param[1]);
+                    break;
+                case "--localParam":
+                    replay.localParams.add(args[++i]);
+                    break;
+                default:
+                    files.add(args[i]);
+            }
+        }
+
+        CoreContainer container = new CoreContainer(Paths.get(args[0]), new Properties());
+        container.load();
+        try (SolrCore core = container.getCore(args[1])) {
+            for (String file : files) {
+                replay.replay(core, file);
+            }
+        } finally {
+            container.shutdown();
+        }
+        replay.report();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void replay(SolrCore core, String file) throws IOException {
+        SolrRequestHandler handler = core.getRequestHandler(handlerName);
+        long threadId = Thread.currentThread().getId();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, Object> record = (Map<String, Object>) ObjectBuilder.fromJSON(line);
+                ModifiableSolrParams params = toParams((Map<String, List<String>>) record.get("params"));
+                Shape shape = shapes.computeIfAbsent(shapeOf(params, (String) record.get("strategy")), Shape::new);
+                shape.captured.add(((Number) record.get("elapsedMillis")).doubleValue());
+                for (int i = 0; i < repeat; i++) {
+                    try (LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, params)) {
+                        SolrQueryResponse rsp = new SolrQueryResponse();
+                        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                        long start = System.nanoTime();
+                        core.execute(handler, req, rsp);
+                        shape.replayed.add((System.nanoTime() - start) / 1e6);
+                        shape.allocatedBytes += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                        if (rsp.getException() != null) {
+                            shape.errors++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private ModifiableSolrParams toParams(Map<String, List<String>> captured) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        captured.forEach((name, values) -> params.set(name, values.toArray(new String[0])));
+        String[] filters = params.getParams("fq");
+        if (filters != null && !localParams.isEmpty()) {
+            for (int i = 0; i < filters.length; i++) {
+                if (filters[i].startsWith(FAST_COLLAPSE)) {
+                    int end = filters[i].indexOf('}');
+                    filters[i] = filters[i].substring(0, end) + " " + String.join(" ", localParams) + filters[i].substring(end);
+                }
+            }
+            params.set("fq", filters);
+        }
+        for (String name : overrides.getParameterNames()) {
+            params.set(name, overrides.getParams(name));
+        }
+        return params;
+    }
+
+    /**
+     * Requests of a shape differ only by their queries and other filters: the same strategy, collapsing filter,
+     * sort, page and rank query.
+     */
+    private static String shapeOf(ModifiableSolrParams params, String strategy) {
+        String[] filters = params.getParams("fq");
+        String collapse = filters == null ? "" : Arrays.stream(filters)
+                .filter(filter -> filter.startsWith(FAST_COLLAPSE) || filter.startsWith("{!collapse"))
+                .findFirst().orElse("");
+        return String.format(Locale.ROOT, "%s %s sort=%s start=%s rows=%s%s",
+                strategy, collapse, params.get("sort", "score desc"), params.get("start", "0"), params.get("rows", "10"),
+                params.get("rq") == null ? "" : " rq");
+    }
+
+    private void report() {
+        System.out.println(String.format(Locale.ROOT, "%8s %8s %12s %12s %12s %12s  %s",
+                "requests", "errors", "captured p50", "replay p50", "replay p99", "KB/request", "shape"));
+        for (Shape shape : shapes.values()) {
+            System.out.println(String.format(Locale.ROOT, "%8d %8d %10.2fms %10.2fms %10.2fms %12.1f  %s",
+                    shape.captured.size(), shape.errors, percentile(shape.captured, 0.5),
+                    percentile(shape.replayed, 0.5), percentile(shape.replayed, 0.99),
+                    shape.allocatedBytes / 1024d / Math.max(1, shape.replayed.size()), shape.name));
+        }
+    }
+
+    private static double percentile(List<Double> values, double quantile) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        double[] sorted = values.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    private static class Shape {
+
+        final String name;
+        final List<Double> captured = new ArrayList<>();
+        final List<Double> replayed = new ArrayList<>();
+        long allocatedBytes;
+        int errors;
+
+        Shape(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.randomizedtesting.annotations.TimeoutSuite;
+import com.google.common.io.Files;
+import org.apache.lucene.util.TimeUnits;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness comparing <code>{!fastCollapse}</code> with Solr's <code>{!collapse}</code> on a generated corpus.
+ * It is not a part of the build, run it with <code>./gradlew loadTest</code> and configure it with
+ * <code>-PloadTest.NAME=VALUE</code> project properties (see the fields below).
+ * <p>
+ * Both parsers run the same mixes of queries from concurrent threads against the same searcher, the harness reports
+ * throughput, latency percentiles and allocation per query of every mix, and whether both parsers returned the same
+ * documents in the same order with the same number of groups.
+ */
+@TimeoutSuite(millis = 4 * TimeUnits.HOUR)
+public class CollapseLoadTest extends SolrTestCaseJ4 {
+
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int DOCS = Integer.getInteger("loadTest.docs", 2_000_000);
+    private static final int GROUPS = Integer.getInteger("loadTest.groups", 200_000);
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("loadTest.zipf", "1.1"));
+    private static final double NULL_RATIO = Double.parseDouble(System.getProperty("loadTest.nullRatio", "0.1"));
+    private static final int SEGMENTS = Integer.getInteger("loadTest.segments", 8);
+    private static final boolean INDEX_SORT = Boolean.getBoolean("loadTest.indexSort");
+    private static final int THREADS = Integer.getInteger("loadTest.threads", 8);
+    private static final int QUERIES = Integer.getInteger("loadTest.queries", 2_000);
+    private static final int WARMUP_QUERIES = Integer.getInteger("loadTest.warmup", 500);
+
+    private static final int BATCH_SIZE = 5_000;
+    private static final String[] WORDS = {"koń", "antylopa", "zebra", "rower", "telefon", "buty", "kurtka", "lampa"};
+
+    private static final List<QueryMix> MIXES = Arrays.asList(
+            new QueryMix("cheapest", "variant", "price asc", 0, 60, "*:*"),
+            new QueryMix("mostExpensivePage2", "variant", "price desc", 60, 60, "*:*"),
+            new QueryMix("numericKey", "variant_hash", "price asc", 0, 60, "*:*"),
+            new QueryMix("selective", "variant", "price asc", 0, 60, "name:rower"),
+            new QueryMix("sellerDeepPage", "seller", "price desc", 1000, 60, "*:*")
+    );
+
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void setup() throws Exception {
+        // the index is large, so random test settings which flush or check too often are replaced
+        System.setProperty("solr.tests.maxBufferedDocs", "1000000");
+        System.setProperty("solr.tests.ramBufferSizeMB", "256");
+        useFactory("solr.RAMDirectoryFactory");
+        initCore(INDEX_SORT ? "solrconfig.xml" : "solrconfig-unsorted.xml", "schema.xml", Files.createTempDir().getAbsolutePath());
+        indexCorpus();
+    }
+
+    @After
+    public void close() throws Exception {
+        deleteCore();
+    }
+
+    @Test
+    public void compareFastCollapseWithCollapse() throws Exception {
+        log.info(String.format(Locale.ROOT, "corpus: docs=%d groups=%d zipf=%.2f nullRatio=%.2f segments=%d indexSort=%b threads=%d",
+                DOCS, GROUPS, ZIPF_EXPONENT, NULL_RATIO, SEGMENTS, INDEX_SORT, THREADS));
+
+        List<String> different = new ArrayList<>();
+        for (QueryMix mix : MIXES) {
+            Result fast = execute(mix.fastCollapse());
+            Result collapse = execute(mix.collapse());
+            boolean same = fast.equals(collapse);
+            if (!same) {
+                different.add(mix.name);
+            }
+            log.info(String.format(Locale.ROOT, "parity %-20s %s (numFound %d vs %d)",
+                    mix.name, same ? "same" : "DIFFERENT", fast.numFound, collapse.numFound));
+        }
+
+        for (boolean isFast : new boolean[]{true, false}) {
+            run(isFast, WARMUP_QUERIES);
+            Stats[] stats = run(isFast, QUERIES);
+            for (int i = 0; i < MIXES.size(); i++) {
+                log.info(stats[i].report((isFast ? "fastCollapse " : "collapse     ") + MIXES.get(i).name));
+            }
+        }
+        // timings are reported first, so a run with different results still shows them
+        log.info(String.format(Locale.ROOT, "parity: %d of %d mixes with different results %s", different.size(), MIXES.size(), different));
+        assertTrue("fastCollapse and collapse returned different results for mixes " + different, different.isEmpty());
+    }
+
+    /**
+     * Runs the given number of queries of every mix, interleaved, from all threads.
+     */
+    private Stats[] run(boolean isFast, int queriesPerMix) throws Exception {
+        Stats[] stats = new Stats[MIXES.size()];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats(queriesPerMix);
+        }
+        AtomicInteger next = new AtomicInteger();
+        int total = queriesPerMix * MIXES.size();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(executor.submit(() -> {
+                    long threadId = Thread.currentThread().getId();
+                    for (int query = next.getAndIncrement(); query < total; query = next.getAndIncrement()) {
+                        int mix = query % MIXES.size();
+                        String[] params = isFast ? MIXES.get(mix).fastCollapse() : MIXES.get(mix).collapse();
+                        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                        long queryStart = System.nanoTime();
+                        execute(params);
+                        stats[mix].add(System.nanoTime() - queryStart, threads.getThreadAllocatedBytes(threadId) - allocatedBefore);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Stats mixStats : stats) {
+            mixStats.elapsedNanos = elapsed;
+        }
+        return stats;
+    }
+
+    private Result execute(String... params) {
+        SolrQueryRequest req = req(params);
+        try {
+            SolrQueryResponse rsp = new SolrQueryResponse();
+            SolrRequestHandler handler = h.getCore().getRequestHandler("/collapse");
+            h.getCore().execute(handler, req, rsp);
+            if (rsp.getException() != null) {
+                throw new IllegalStateException(rsp.getException());
+            }
+            DocList docList = ((ResultContext) rsp.getResponse()).getDocList();
+            int[] docs = new int[docList.size()];
+            DocIterator iterator = docList.iterator();
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = iterator.nextDoc();
+            }
+            return new Result(docList.matches(), docs);
+        } finally {
+            req.close();
+        }
+    }
+
+    private void indexCorpus() {
+        Random random = new Random(Long.getLong("loadTest.seed", 42L));
+        double[] cumulative = zipfCumulative(GROUPS, ZIPF_EXPONENT);
+        int commitEvery = Math.max(1, DOCS / SEGMENTS);
+        StringBuilder batch = new StringBuilder("<add>");
+        for (int id = 0; id < DOCS; id++) {
+            batch.append("<doc><field name=\"id\">").append(id).append("</field>")
+                    .append("<field name=\"name\">").append(WORDS[random.nextInt(WORDS.length)]).append("</field>")
+                    .append("<field name=\"price\">").append(random.nextInt(100_000) / 100f).append("</field>")
+                    .append("<field name=\"seller\">").append(random.nextInt(GROUPS / 10 + 1)).append("</field>");
+            if (random.nextDouble() >= NULL_RATIO) {
+                long variant = sample(cumulative, random) + 1L;
+                batch.append("<field name=\"variant\">").append(variant).append("</field>")
+                        .append("<field name=\"variant_hash\">").append(variant).append("</field>");
+            }
+            batch.append("</doc>");
+            if ((id + 1) % BATCH_SIZE == 0 || id + 1 == DOCS) {
+                h.update(batch.append("</add>").toString());
+                batch.setLength(0);
+                batch.append("<add>");
+            }
+            if ((id + 1) % commitEvery == 0) {
+                h.update("<commit/>");
+            }
+        }
+        h.update("<commit/>");
+    }
+
+    private static double[] zipfCumulative(int groups, double exponent) {
+        double[] cumulative = new double[groups];
+        double sum = 0;
+        for (int rank = 0; rank < groups; rank++) {
+            sum += 1d / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < groups; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+
+    private static class QueryMix {
+
+        final String name;
+        final String field;
+        final String sort;
+        final int start;
+        final int rows;
+        final String query;
+
+        QueryMix(String name, String field, String sort, int start, int rows, String query) {
+            this.name = name;
+            this.field = field;
+            this.sort = sort;
+            this.start = start;
+            this.rows = rows;
+            this.query = query;
+        }
+
+        String[] fastCollapse() {
+            return params("{!fastCollapse field=" + field + " exactCount=true}*:*");
+        }
+
+        /**
+         * Heads are chosen by the sort of the request and documents without a value are kept, like in the fast filter.
+         */
+        String[] collapse() {
+            return params("{!collapse field=" + field + " sort='" + sort + "' nullPolicy=expand}");
+        }
+
+        private String[] params(String filter) {
+            return new String[]{"q", query, "fq", filter, "sort", sort,
+                    "start", Integer.toString(start), "rows", Integer.toString(rows), "fl", "id"};
+        }
+    }
+
+    private static class Result {
+
+        final long numFound;
+        final int[] docs;
+
+        Result(long numFound, int[] docs) {
+            this.numFound = numFound;
+            this.docs = docs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Result && numFound == ((Result) o).numFound && Arrays.equals(docs, ((Result) o).docs);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(numFound) + Arrays.hashCode(docs);
+        }
+    }
+
+    private static class Stats {
+
+        private final long[] latencies;
+        private final AtomicInteger count = new AtomicInteger();
+        private long allocatedBytes;
+        long elapsedNanos;
+
+        Stats(int queries) {
+            this.latencies = new long[queries];
+        }
+
+        void add(long latencyNanos, long allocated) {
+            latencies[count.getAndIncrement()] = latencyNanos;
+            synchronized (this) {
+                allocatedBytes += allocated;
+            }
+        }
+
+        String report(String name) {
+            long[] sorted = Arrays.copyOf(latencies, count.get());
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.ROOT, "%-34s %8.1f q/s  p50 %7.2f ms  p99 %7.2f ms  p999 %7.2f ms  %9.1f KB/query  %8.1f MB/s",
+                    name,
+                    sorted.length / seconds,
+                    percentile(sorted, 0.5),
+                    percentile(sorted, 0.99),
+                    percentile(sorted, 0.999),
+                    allocatedBytes / 1024d / Math.max(1, sorted.length),
+                    allocatedBytes / 1024d / 1024d / seconds);
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
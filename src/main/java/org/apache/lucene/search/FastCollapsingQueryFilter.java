@@ -2,49 +2,130 @@ package org.apache.lucene.search;
 
 import com.carrotsearch.hppc.IntArrayDeque;
 import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongObjectHashMap;
 import com.carrotsearch.hppc.LongScatterSet;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.BitDocSet;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.ExtendedQueryBase;
 import org.apache.solr.search.PostFilter;
 import org.apache.solr.search.SolrIndexSearcher;
+import pl.allegro.search.solr.qparser.CollapseCounters;
+import pl.allegro.search.solr.qparser.CollapseEvents;
+import pl.allegro.search.solr.qparser.CollapseRecorder;
+import pl.allegro.search.solr.qparser.CollapsedHeads;
+import pl.allegro.search.solr.qparser.FunctionKeys;
+import pl.allegro.search.solr.qparser.GroupStats;
+import pl.allegro.search.solr.qparser.HeapTopDocsCollector;
+import pl.allegro.search.solr.qparser.NullPolicy;
 import pl.allegro.search.solr.qparser.SortedDocValuesHash;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_COUNTERS;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_GROUP_DOCSET;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_GROUP_STATS;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_HEADS;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_HEAP_COLLECTOR;
 import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_REQUEST_TOTAL_HITS;
-import static pl.allegro.search.solr.qparser.SortedDocValuesHash.EMPTY;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_SORTED_LISTS;
 
 public class FastCollapsingQueryFilter extends ExtendedQueryBase implements PostFilter {
 
+    static final int BATCH_SIZE = 64;
+    // at most this many survivors of the previous batch make the next one use the vector loop, see SurvivorSelector
+    private static final int SPARSE_SURVIVORS = BATCH_SIZE / 32;
+
+    // kinds of documents by their collapse key, see NullPolicy
+    private static final byte SINGLE = 0;
+    private static final byte KEYED = 1;
+    private static final byte NULL_GROUP = 2;
+    private static final byte IGNORED = 3;
+
     private final String field;
-    private final FieldType fieldType;
+    private final SortedDocValuesHash.KeyType keyType;
+    private final ValueSource keySource;
+    private final boolean isMemoizedKeys;
     private final Sort sort;
     private final int queueSize;
     private final boolean isExactCount;
+    private final boolean isBatched;
+    private final int groupLimit;
+    private final String[] statsFields;
+    private final boolean isGroupFacets;
+    private final boolean isPublishHeads;
+    private final NullPolicy nullPolicy;
+    private final Map<String, Sort> alternativeSorts;
     private final Map<Object, Object> reqContext;
 
     class EntryWithHash extends FieldValueHitQueue.Entry {
 
         long hash;
+        byte kind;
 
-        public EntryWithHash(int slot, int doc, float score, long hash) {
+        public EntryWithHash(int slot, int doc, float score, long hash, byte kind) {
             super(slot, doc);
             this.hash = hash;
+            this.kind = kind;
             this.score = score;
         }
     }
 
+    /**
+     * Bytes the queue takes for every row it keeps: the entry and its reference in the heap, its slots in the maps
+     * of keys to entries and to ids at the default load factor, its free id, and a long per sort clause
+     * in the comparators (string clauses keep an ordinal and a term instead, so they take more).
+     */
+    public static long queueBytesPerRow(int sortClauses) {
+        return RamUsageEstimator.shallowSizeOfInstance(EntryWithHash.class)
+                + RamUsageEstimator.NUM_BYTES_OBJECT_REF
+                + (long) Math.ceil((Long.BYTES + RamUsageEstimator.NUM_BYTES_OBJECT_REF) / 0.75d)
+                + (long) Math.ceil((Long.BYTES + Integer.BYTES) / 0.75d)
+                + Integer.BYTES
+                + (long) sortClauses * Long.BYTES;
+    }
+
     public FastCollapsingQueryFilter(String field, FieldType fieldType, Sort sort, int queueSize, boolean isExactCount, Map<Object, Object> reqContext) {
+        this(field, fieldType, sort, queueSize, isExactCount, false, 1, new String[0], false, false, NullPolicy.EXPAND, Collections.emptyMap(), reqContext);
+    }
+
+    public FastCollapsingQueryFilter(String field, FieldType fieldType, Sort sort, int queueSize, boolean isExactCount, boolean isBatched, int groupLimit, String[] statsFields, boolean isGroupFacets, boolean isPublishHeads, NullPolicy nullPolicy, Map<String, Sort> alternativeSorts, Map<Object, Object> reqContext) {
+        this(field, SortedDocValuesHash.KeyType.of(fieldType), null, false, sort, queueSize, isExactCount, isBatched, groupLimit, statsFields, isGroupFacets, isPublishHeads, nullPolicy, alternativeSorts, reqContext);
+    }
+
+    /**
+     * Collapses by keys computed by the given function, see {@link FunctionKeys}. Heads are not published,
+     * since there is no field to look up members of their groups.
+     */
+    public FastCollapsingQueryFilter(ValueSource keySource, boolean isMemoizedKeys, Sort sort, int queueSize, boolean isExactCount, boolean isBatched, int groupLimit, String[] statsFields, boolean isGroupFacets, NullPolicy nullPolicy, Map<String, Sort> alternativeSorts, Map<Object, Object> reqContext) {
+        this(keySource.description(), SortedDocValuesHash.KeyType.NUMERIC, keySource, isMemoizedKeys, sort, queueSize, isExactCount, isBatched, groupLimit, statsFields, isGroupFacets, false, nullPolicy, alternativeSorts, reqContext);
+    }
+
+    private FastCollapsingQueryFilter(String field, SortedDocValuesHash.KeyType keyType, ValueSource keySource, boolean isMemoizedKeys, Sort sort, int queueSize, boolean isExactCount, boolean isBatched, int groupLimit, String[] statsFields, boolean isGroupFacets, boolean isPublishHeads, NullPolicy nullPolicy, Map<String, Sort> alternativeSorts, Map<Object, Object> reqContext) {
         this.field = field;
-        this.fieldType = fieldType;
+        this.keyType = keyType;
+        this.keySource = keySource;
+        this.isMemoizedKeys = isMemoizedKeys;
         this.sort = sort;
         this.queueSize = queueSize;
         this.isExactCount = isExactCount;
+        // documents of a batch are not offered to the queues of alternative sorts
+        this.isBatched = isBatched && alternativeSorts.isEmpty();
+        this.groupLimit = groupLimit;
+        this.statsFields = statsFields;
+        this.isGroupFacets = isGroupFacets;
+        this.isPublishHeads = isPublishHeads;
+        this.nullPolicy = nullPolicy;
+        this.alternativeSorts = alternativeSorts;
         this.reqContext = reqContext;
     }
 
@@ -54,30 +135,113 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
         int leafCount = searcher.getTopReaderContext().leaves().size();
 
         try {
-            SortField[] rewrittenSortFields = rewriteSort(sort, searcher).getSort();
-            FieldValueHitQueue<EntryWithHash> queue = FieldValueHitQueue.create(rewrittenSortFields, queueSize);
+            OrdinalMap ordinalMap = keySource == null ? SortedDocValuesHash.getOrdinalMap(searcher, field, keyType) : null;
+            FunctionKeys functionKeys = keySource == null ? null : new FunctionKeys(keySource, searcher, isMemoizedKeys);
+            Sort rewrittenSort = rewriteSort(sort, searcher);
+            SortField[] rewrittenSortFields = rewrittenSort.getSort();
+            // with a group limit one more slot is needed to compare a document with the worst member of its group
+            FieldValueHitQueue<EntryWithHash> queue = FieldValueHitQueue.create(rewrittenSortFields, groupLimit > 1 ? queueSize + 1 : queueSize);
+            List<AlternativeSortQueue> alternativeQueues = new ArrayList<>(alternativeSorts.size());
+            boolean anySortNeedsScores = rewrittenSort.needsScores();
+            for (Map.Entry<String, Sort> alternativeSort : alternativeSorts.entrySet()) {
+                Sort rewrittenAlternative = rewriteSort(alternativeSort.getValue(), searcher);
+                alternativeQueues.add(new AlternativeSortQueue(alternativeSort.getKey(), rewrittenAlternative.getSort(), queueSize));
+                anySortNeedsScores |= rewrittenAlternative.needsScores();
+            }
+            boolean sortNeedsScores = anySortNeedsScores;
+            GroupStats groupStats = createGroupStats(searcher);
+            // keys of documents rejected at the bottom of the queue are needed only to count or aggregate groups,
+            // to offer them to the queues of alternative sorts or to leave documents without a key out of total hits
+            boolean readAllKeys = isExactCount || groupStats != null || isGroupFacets || !alternativeQueues.isEmpty()
+                    || nullPolicy == NullPolicy.IGNORE;
+            byte nullKind = nullPolicy == NullPolicy.IGNORE ? IGNORED : nullPolicy == NullPolicy.COLLAPSE ? NULL_GROUP : SINGLE;
+            CollapseCounters counters = (CollapseCounters) reqContext.get(COLLAPSING_COUNTERS);
+            long collectStart = System.nanoTime();
+            CollapseRecorder recorder = CollapseEvents.recorder();
             return new DelegatingCollector() {
                 private SortedDocValuesHash sortedDocValuesHash;
+                // kind of the document of the last readVariantHash() call
+                private byte variantKind;
                 private LeafReaderContext[] contexts = new LeafReaderContext[leafCount];
-                private Map<Long, EntryWithHash> variantHashToElement = new HashMap<>(queueSize);
+                // the group of all documents without a value (NullPolicy.COLLAPSE) is kept apart from the maps,
+                // since a numeric key can have any long value
+                private EntryWithHash nullGroupElement;
+                private int nullGroupId = -1;
+                private GroupMembers nullGroupMembers;
+                private boolean nullGroupFound;
+                private LongObjectHashMap<EntryWithHash> variantHashToElement = new LongObjectHashMap<>(queueSize);
                 private LongIntHashMap variantHashToId = new LongIntHashMap(queueSize);
                 private IntArrayDeque freeVariantIds = new IntArrayDeque(queueSize);
                 //we start with index =1 and we need one more to compare before removing, so that why we have plus two
                 private final SortFieldsCompare variantComparator = new SortFieldsCompare(rewrittenSortFields, queueSize + 2);
                 private int totalHits;
+                // all collected documents, totalHits does not count documents replacing the head of their group
+                private int scanned;
+                private int heapReplacements;
+                private int rejectedAtBottom;
+                // collect time of every segment, one System.nanoTime() call per segment
+                private final long[] segmentNanos = counters != null ? new long[leafCount] : null;
+                private int segmentOrd = -1;
+                private long segmentStart;
                 private boolean queueFull;
                 private LeafFieldComparator queueComparator;
                 private int reverseMul;
                 EntryWithHash bottomElement = null;
-                private LongScatterSet numFoundVariant = isExactCount ? new LongScatterSet(128) : null;
+                private LongScatterSet numFoundVariant = isExactCount || isGroupFacets ? new LongScatterSet(128) : null;
                 private int numFoundNonVariant = 0;
+                // one representative (the first collected document) of every group, for faceting over groups
+                private final FixedBitSet groupRepresentatives = isGroupFacets ? new FixedBitSet(searcher.maxDoc()) : null;
+
+                // group limit: members of every group kept in the queue, see collectGroupMember()
+                private final LongObjectHashMap<GroupMembers> groupMembers = groupLimit > 1 ? new LongObjectHashMap<>(queueSize) : null;
+                private int spareSlot = queueSize;
+
+                // batched mode: documents are buffered and processed in stages, see flushBatch()
+                private final PrimarySortValues primarySortValues = isBatched ? PrimarySortValues.create(rewrittenSortFields[0]) : null;
+                private final int[] batchDocs = isBatched ? new int[BATCH_SIZE] : null;
+                private final float[] batchScores = isBatched ? new float[BATCH_SIZE] : null;
+                private final double[] batchSortValues = isBatched ? new double[BATCH_SIZE] : null;
+                private final long[] batchHashes = isBatched ? new long[BATCH_SIZE] : null;
+                private final byte[] batchKinds = isBatched ? new byte[BATCH_SIZE] : null;
+                private final int[] batchSurvivors = isBatched ? new int[BATCH_SIZE] : null;
+                private final BatchScorer batchScorer = isBatched ? new BatchScorer(batchDocs, batchScores) : null;
+                private int batchLength;
+                private int lastSurvivors = BATCH_SIZE;
+                private boolean captureScores;
+                private boolean needsScores;
+                private Scorable docScorer;
 
                 @Override
                 protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    flushBatch();
+                    endSegment();
+                    segmentOrd = context.ord;
+                    recorder.beginSegment(context.ord, context.reader().maxDoc(), scanned);
                     super.doSetNextReader(context);
-                    sortedDocValuesHash = new SortedDocValuesHash(context.reader(), field, fieldType);
+                    sortedDocValuesHash = functionKeys != null ?
+                            functionKeys.create(context) :
+                            SortedDocValuesHash.create(context, field, keyType, ordinalMap);
                     this.contexts[context.ord] = context;
                     initContextComparators(context);
+                    if (groupStats != null) {
+                        groupStats.setNextReader(context);
+                    }
+                    for (AlternativeSortQueue alternativeQueue : alternativeQueues) {
+                        alternativeQueue.setNextReader(context);
+                    }
+                }
+
+                private void endSegment() {
+                    if (segmentOrd >= 0) {
+                        recorder.endSegment(scanned);
+                    }
+                    if (segmentNanos != null) {
+                        long now = System.nanoTime();
+                        if (segmentOrd >= 0) {
+                            segmentNanos[segmentOrd] = now - segmentStart;
+                        }
+                        segmentStart = now;
+                    }
                 }
 
                 private void initContextComparators(LeafReaderContext context) throws IOException {
@@ -89,110 +253,362 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
                         this.reverseMul = 1;
                         this.queueComparator = new MultiLeafFieldComparator(queue.getComparators(context), queue.getReverseMul());
                     }
+                    if (primarySortValues != null) {
+                        primarySortValues.setNextReader(context);
+                    }
+                }
+
+                /**
+                 * Scores are needed only if the collapse sort or the delegate uses them,
+                 * otherwise the main query does not have to compute them at all.
+                 */
+                @Override
+                public ScoreMode scoreMode() {
+                    return sortNeedsScores ? ScoreMode.COMPLETE : super.scoreMode();
                 }
 
                 @Override
                 public void setScorer(Scorable scorer) throws IOException {
                     super.setScorer(scorer);
-                    this.variantComparator.setScorer(scorer);
-                    queueComparator.setScorer(scorer);
+                    needsScores = scoreMode().needsScores();
+                    if (isBatched) {
+                        // comparators see the buffered document and its score, not the current position of the scorer
+                        captureScores = needsScores;
+                        docScorer = batchScorer;
+                    } else {
+                        docScorer = scorer;
+                    }
+                    this.variantComparator.setScorer(docScorer);
+                    queueComparator.setScorer(docScorer);
+                    for (AlternativeSortQueue alternativeQueue : alternativeQueues) {
+                        alternativeQueue.setScorer(docScorer);
+                    }
                 }
 
-                private void countNumFound(long variantHash) {
-                    if (isExactCount) {
-                        if (variantHash != EMPTY) {
-                            numFoundVariant.add(variantHash);
+                private void countNumFound(int docNumber, long variantHash, byte kind) {
+                    if (numFoundVariant != null) {
+                        boolean newGroup;
+                        if (kind == KEYED) {
+                            newGroup = numFoundVariant.add(variantHash);
+                        } else if (kind == NULL_GROUP) {
+                            newGroup = !nullGroupFound;
+                            nullGroupFound = true;
+                            if (newGroup) {
+                                numFoundNonVariant++;
+                            }
                         } else {
                             numFoundNonVariant++;
+                            newGroup = true;
+                        }
+                        if (newGroup && isGroupFacets) {
+                            groupRepresentatives.set(docNumber + docBase);
                         }
                     }
                 }
 
+                private void trackGroup(int docNumber, long variantHash, byte kind) throws IOException {
+                    countNumFound(docNumber, variantHash, kind);
+                    if (groupStats != null && kind == KEYED) {
+                        groupStats.collect(docNumber, variantHash);
+                    }
+                    for (AlternativeSortQueue alternativeQueue : alternativeQueues) {
+                        alternativeQueue.offer(docNumber, docNumber + docBase, currentScore(), variantHash, kind);
+                    }
+                }
+
                 @Override
                 public void collect(int docNumber) throws IOException {
-                    int globalDoc = docNumber + this.docBase;
-
-                    ++totalHits;
-                    if (queueFull) {
+                    ++scanned;
+                    if (isBatched) {
+                        batchDocs[batchLength] = docNumber;
+                        if (captureScores) {
+                            batchScores[batchLength] = scorer.score();
+                        }
+                        if (++batchLength == BATCH_SIZE) {
+                            flushBatch();
+                        }
+                        return;
+                    }
 
-                        if (documentIsWorseThenAllInQueue(docNumber)) {
-                            if (isExactCount) {
-                                countNumFound(readVariantHash(docNumber));
-                            }
+                    if (queueFull && documentIsWorseThenAllInQueue(docNumber)) {
+                        ++rejectedAtBottom;
+                        if (!readAllKeys) {
+                            ++totalHits;
                             return;
                         }
                         long variantHash = readVariantHash(docNumber);
-                        countNumFound(variantHash);
+                        if (variantKind != IGNORED) {
+                            ++totalHits;
+                            trackGroup(docNumber, variantHash, variantKind);
+                        }
+                        return;
+                    }
+                    long variantHash = readVariantHash(docNumber);
+                    byte kind = variantKind;
+                    if (kind == IGNORED) {
+                        return;
+                    }
+                    trackGroup(docNumber, variantHash, kind);
+                    collectCompetitive(docNumber, variantHash, kind);
+                }
+
+                /**
+                 * Processes buffered documents in stages, each of them being a simple loop over primitive arrays:
+                 * documents which are worse than the queue bottom on the primary sort clause are dropped first,
+                 * then variant hashes are read only for the survivors (or all documents if groups are counted or aggregated)
+                 * and finally survivors go through the queue.
+                 */
+                private void flushBatch() throws IOException {
+                    if (batchLength == 0) {
+                        return;
+                    }
+                    int survivors = selectSurvivors();
+                    int ignoredRejected = 0;
+                    if (readAllKeys) {
+                        for (int i = 0; i < batchLength; i++) {
+                            batchHashes[i] = readVariantHash(batchDocs[i]);
+                            batchKinds[i] = variantKind;
+                        }
+                        for (int i = 0; i < batchLength; i++) {
+                            if (batchKinds[i] != IGNORED) {
+                                trackGroup(batchDocs[i], batchHashes[i], batchKinds[i]);
+                            } else {
+                                ignoredRejected++;
+                            }
+                        }
+                        for (int s = 0; s < survivors; s++) {
+                            if (batchKinds[batchSurvivors[s]] == IGNORED) {
+                                ignoredRejected--;
+                            }
+                        }
+                    } else {
+                        for (int s = 0; s < survivors; s++) {
+                            int i = batchSurvivors[s];
+                            batchHashes[i] = readVariantHash(batchDocs[i]);
+                            batchKinds[i] = variantKind;
+                        }
+                    }
+                    totalHits += batchLength - survivors - ignoredRejected;
+                    rejectedAtBottom += batchLength - survivors;
+
+                    for (int s = 0; s < survivors; s++) {
+                        int i = batchSurvivors[s];
+                        int docNumber = batchDocs[i];
+                        if (batchKinds[i] == IGNORED) {
+                            continue;
+                        }
+                        batchScorer.index = i;
+                        // bottom could have been raised by previous survivors
+                        if (queueFull && documentIsWorseThenAllInQueue(docNumber)) {
+                            ++totalHits;
+                            ++rejectedAtBottom;
+                            continue;
+                        }
+                        collectCompetitive(docNumber, batchHashes[i], batchKinds[i]);
+                    }
+                    batchLength = 0;
+                }
+
+                private int selectSurvivors() throws IOException {
+                    if (!queueFull || primarySortValues == null) {
+                        for (int i = 0; i < batchLength; i++) {
+                            batchSurvivors[i] = i;
+                        }
+                        return batchLength;
+                    }
+                    primarySortValues.read(batchDocs, batchLength, batchSortValues);
+                    double sign = primarySortValues.isReverse() ? -1d : 1d;
+                    double bottom = sign * ((Number) queue.getComparators()[0].value(bottomElement.slot)).doubleValue();
+                    lastSurvivors = lastSurvivors <= SPARSE_SURVIVORS ?
+                            SurvivorSelector.select(batchSortValues, batchLength, sign, bottom, batchSurvivors) :
+                            SurvivorSelector.selectScalar(batchSortValues, batchLength, sign, bottom, batchSurvivors);
+                    return lastSurvivors;
+                }
 
+                private void collectCompetitive(int docNumber, long variantHash, byte kind) throws IOException {
+                    if (groupLimit > 1) {
+                        collectGroupMember(docNumber, variantHash, kind);
+                        return;
+                    }
+                    int globalDoc = docNumber + this.docBase;
 
-                        if (isVariantDocument(variantHash)) {
-                            if (variantContainedInQueue(variantHash)) {
+                    ++totalHits;
+                    if (queueFull) {
+                        if (isGrouped(kind)) {
+                            if (variantContainedInQueue(variantHash, kind)) {
                                 queueLengthIsSameSoReduceTotalHits();
-                                if (currentDocumentIsBetterThenItsVariantInQueue(docNumber, variantHash)) {
-                                    updateElementInMiddleInQueue(docNumber, globalDoc, variantHash);
+                                if (currentDocumentIsBetterThenItsVariantInQueue(docNumber, variantHash, kind)) {
+                                    updateElementInMiddleInQueue(docNumber, globalDoc, variantHash, kind);
                                     return;
                                 } else {//current document is worse then previous variant
                                     return;
                                 }
                             } else {
-                                recordVariantDocument4Comparison(docNumber, variantHash);
-                                variantHashToElement.put(variantHash, bottomElement);//exchange best variant
+                                recordVariantDocument4Comparison(docNumber, variantHash, kind);
+                                putElement(variantHash, kind, bottomElement);//exchange best variant
                             }
                         }
 
 
                         long bottomQueueVariantHash = bottomElement.hash;
-                        if (isVariantDocument(bottomQueueVariantHash)) {
+                        byte bottomQueueKind = bottomElement.kind;
+                        if (isGrouped(bottomQueueKind)) {
                             // remova last element from temporary structures
-                            variantHashToElement.remove(bottomQueueVariantHash);
-                            int variantHashId = getAndRemoveVariantHashId(bottomQueueVariantHash);
+                            removeElement(bottomQueueVariantHash, bottomQueueKind);
+                            int variantHashId = getAndRemoveVariantHashId(bottomQueueVariantHash, bottomQueueKind);
                             variantComparator.groupHeadValues[variantHashId] = null;
                         }
-                        updateElementInQueue(bottomElement, docNumber, globalDoc, variantHash);
+                        updateElementInQueue(bottomElement, docNumber, globalDoc, variantHash, kind);
                     } else {
                         // Startup transient: queue hasn't gathered numHits yet
                         int slot = totalHits - 1;
 
-                        long variantHash = readVariantHash(docNumber);
-                        countNumFound(variantHash);
-                        if (isVariantDocument(variantHash)) {
-                            if (variantContainedInQueue(variantHash)) {
+                        if (isGrouped(kind)) {
+                            if (variantContainedInQueue(variantHash, kind)) {
                                 queueLengthIsSameSoReduceTotalHits();
-                                if (currentDocumentIsBetterThenItsVariantInQueue(docNumber, variantHash)) {
-                                    EntryWithHash elementToRemove = variantHashToElement.get(variantHash);
+                                if (currentDocumentIsBetterThenItsVariantInQueue(docNumber, variantHash, kind)) {
+                                    EntryWithHash elementToRemove = elementOf(variantHash, kind);
                                     queue.remove(elementToRemove);
                                     slot = elementToRemove.slot;
                                 } else {//current document is worse then previous variant
                                     return;
                                 }
                             } else {
-                                recordVariantDocument4Comparison(docNumber, variantHash);
+                                recordVariantDocument4Comparison(docNumber, variantHash, kind);
                             }
 
                         }
 
                         // Copy hit into queue
                         queueComparator.copy(slot, docNumber);
-                        EntryWithHash entry = new EntryWithHash(slot, globalDoc, scorer.score(), variantHash);
-                        if (isVariantDocument(variantHash)) {
-                            variantHashToElement.put(variantHash, entry);
+                        EntryWithHash entry = new EntryWithHash(slot, globalDoc, currentScore(), variantHash, kind);
+                        if (isGrouped(kind)) {
+                            putElement(variantHash, kind, entry);
+                        }
+                        add(entry);
+                    }
+                }
+
+                /**
+                 * Keeps up to groupLimit best documents of every group in the queue. If the group is already full,
+                 * the document replaces its worst member, otherwise it is added as a new element
+                 * and the bottom of the queue (the worst member of its own group) is evicted if needed.
+                 */
+                private void collectGroupMember(int docNumber, long variantHash, byte kind) throws IOException {
+                    int globalDoc = docNumber + this.docBase;
+
+                    ++totalHits;
+                    GroupMembers members = isGrouped(kind) ? membersOf(variantHash, kind) : null;
+                    if (members != null && members.size == groupLimit) {
+                        queueLengthIsSameSoReduceTotalHits();
+                        EntryWithHash worst = worstMember(members);
+                        queueComparator.copy(spareSlot, docNumber);
+                        if (compareSlots(spareSlot, worst.slot) >= 0) {
+                            return;
+                        }
+                        queue.remove(worst);
+                        int slot = worst.slot;
+                        worst.slot = spareSlot;
+                        spareSlot = slot;
+                        worst.doc = globalDoc;
+                        worst.score = currentScore();
+                        bottomElement = queue.add(worst);
+                        ++heapReplacements;
+                        if (queueFull) {
+                            queueComparator.setBottom(bottomElement.slot);
+                        }
+                        return;
+                    }
+
+                    EntryWithHash entry;
+                    if (queueFull) {
+                        entry = bottomElement;
+                        if (isGrouped(entry.kind)) {
+                            GroupMembers bottomMembers = membersOf(entry.hash, entry.kind);
+                            bottomMembers.remove(entry);
+                            if (bottomMembers.size == 0) {
+                                putMembers(entry.hash, entry.kind, null);
+                            }
                         }
+                        updateElementInQueue(entry, docNumber, globalDoc, variantHash, kind);
+                    } else {
+                        int slot = totalHits - 1;
+                        queueComparator.copy(slot, docNumber);
+                        entry = new EntryWithHash(slot, globalDoc, currentScore(), variantHash, kind);
                         add(entry);
                     }
+
+                    if (isGrouped(kind)) {
+                        members = membersOf(variantHash, kind);
+                        if (members == null) {
+                            members = new GroupMembers(groupLimit);
+                            putMembers(variantHash, kind, members);
+                        }
+                        members.add(entry);
+                    }
+                }
+
+                private GroupMembers membersOf(long variantHash, byte kind) {
+                    return kind == NULL_GROUP ? nullGroupMembers : groupMembers.get(variantHash);
+                }
+
+                private void putMembers(long variantHash, byte kind, GroupMembers members) {
+                    if (kind == NULL_GROUP) {
+                        nullGroupMembers = members;
+                    } else if (members == null) {
+                        groupMembers.remove(variantHash);
+                    } else {
+                        groupMembers.put(variantHash, members);
+                    }
                 }
 
-                private void updateElementInMiddleInQueue(int docNumber, int globalDoc, long variantHash) throws IOException {
-                    EntryWithHash elementToUpdate = variantHashToElement.get(variantHash);
+                private EntryWithHash worstMember(GroupMembers members) {
+                    EntryWithHash worst = members.entries[0];
+                    for (int i = 1; i < members.size; i++) {
+                        EntryWithHash member = members.entries[i];
+                        int compare = compareSlots(member.slot, worst.slot);
+                        if (compare > 0 || (compare == 0 && member.doc > worst.doc)) {
+                            worst = member;
+                        }
+                    }
+                    return worst;
+                }
+
+                private int compareSlots(int slot1, int slot2) {
+                    FieldComparator<?>[] comparators = queue.getComparators();
+                    int[] reverseMuls = queue.getReverseMul();
+                    for (int i = 0; i < comparators.length; i++) {
+                        int compare = reverseMuls[i] * comparators[i].compare(slot1, slot2);
+                        if (compare != 0) {
+                            return compare;
+                        }
+                    }
+                    return 0;
+                }
+
+                private void updateElementInMiddleInQueue(int docNumber, int globalDoc, long variantHash, byte kind) throws IOException {
+                    EntryWithHash elementToUpdate = elementOf(variantHash, kind);
+                    ++heapReplacements;
                     queue.remove(elementToUpdate);
                     queueComparator.copy(elementToUpdate.slot, docNumber);
                     elementToUpdate.doc = globalDoc;
-                    elementToUpdate.score = scorer.score();
+                    elementToUpdate.score = currentScore();
                     bottomElement = queue.add(elementToUpdate);
                     queueComparator.setBottom(bottomElement.slot);
                 }
 
+                private float currentScore() throws IOException {
+                    return needsScores ? docScorer.score() : 0f;
+                }
+
                 private long readVariantHash(int docNumber) throws IOException {
-                    return sortedDocValuesHash.getHash(docNumber);
+                    if (sortedDocValuesHash.advanceExact(docNumber)) {
+                        variantKind = KEYED;
+                        return sortedDocValuesHash.key();
+                    }
+                    variantKind = nullKind;
+                    // never read, documents without a key are told apart by their kind
+                    return 0;
                 }
 
                 private void synchronizeQueueWithNewElement() throws IOException {
@@ -200,36 +616,69 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
                     queueComparator.setBottom(bottomElement.slot);
                 }
 
-                private void updateElementInQueue(EntryWithHash element, int docNumber, int globalDoc, long variantHash) throws IOException {
+                private void updateElementInQueue(EntryWithHash element, int docNumber, int globalDoc, long variantHash, byte kind) throws IOException {
+                    ++heapReplacements;
                     queueComparator.copy(element.slot, docNumber);
                     element.doc = globalDoc;
-                    element.score = scorer.score();
+                    element.score = currentScore();
                     element.hash = variantHash;
+                    element.kind = kind;
                     synchronizeQueueWithNewElement();
                 }
 
-                private int getAndRemoveVariantHashId(long bottomQueueVariantHash) {
-                    int variantId = variantHashToId.remove(bottomQueueVariantHash);
+                private int getAndRemoveVariantHashId(long bottomQueueVariantHash, byte kind) {
+                    int variantId;
+                    if (kind == NULL_GROUP) {
+                        variantId = nullGroupId;
+                        nullGroupId = -1;
+                    } else {
+                        variantId = variantHashToId.remove(bottomQueueVariantHash);
+                    }
                     freeVariantIds.addFirst(variantId);
                     return variantId;
                 }
 
-                private void recordVariantDocument4Comparison(int docNumber, long variantHash) throws IOException {
+                private void recordVariantDocument4Comparison(int docNumber, long variantHash, byte kind) throws IOException {
                     int variantId = initVariantIndex();
-                    variantHashToId.put(variantHash, variantId);
+                    if (kind == NULL_GROUP) {
+                        nullGroupId = variantId;
+                    } else {
+                        variantHashToId.put(variantHash, variantId);
+                    }
                     variantComparator.setGroupValues(variantId, docNumber);
                 }
 
-                private boolean currentDocumentIsBetterThenItsVariantInQueue(int docNumber, long hash) throws IOException {
-                    return variantComparator.testAndSetGroupValues(variantHashToId.get(hash), docNumber);
+                private boolean currentDocumentIsBetterThenItsVariantInQueue(int docNumber, long hash, byte kind) throws IOException {
+                    int variantId = kind == NULL_GROUP ? nullGroupId : variantHashToId.get(hash);
+                    return variantComparator.testAndSetGroupValues(variantId, docNumber);
                 }
 
                 private void queueLengthIsSameSoReduceTotalHits() {
                     totalHits--;
                 }
 
-                private boolean variantContainedInQueue(long hash) {
-                    return variantHashToElement.containsKey(hash);
+                private boolean variantContainedInQueue(long hash, byte kind) {
+                    return kind == NULL_GROUP ? nullGroupElement != null : variantHashToElement.containsKey(hash);
+                }
+
+                private EntryWithHash elementOf(long hash, byte kind) {
+                    return kind == NULL_GROUP ? nullGroupElement : variantHashToElement.get(hash);
+                }
+
+                private void putElement(long hash, byte kind, EntryWithHash element) {
+                    if (kind == NULL_GROUP) {
+                        nullGroupElement = element;
+                    } else {
+                        variantHashToElement.put(hash, element);
+                    }
+                }
+
+                private void removeElement(long hash, byte kind) {
+                    if (kind == NULL_GROUP) {
+                        nullGroupElement = null;
+                    } else {
+                        variantHashToElement.remove(hash);
+                    }
                 }
 
                 private boolean documentIsWorseThenAllInQueue(int docNumber) throws IOException {
@@ -240,11 +689,11 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
                     if (!freeVariantIds.isEmpty()) {
                         return freeVariantIds.removeFirst();
                     }
-                    return nextId.incrementAndGet();
+                    return ++nextId;
                 }
 
 
-                AtomicInteger nextId = new AtomicInteger();
+                private int nextId;
 
                 final void add(EntryWithHash entry) throws IOException {
                     bottomElement = queue.add(entry);
@@ -257,12 +706,54 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
 
                 @Override
                 public void finish() throws IOException {
+                    flushBatch();
+                    endSegment();
+                    long finishStart = System.nanoTime();
+                    try {
+                        finishQueue();
+                    } finally {
+                        long finishNanos = System.nanoTime() - finishStart;
+                        long groups = numFoundVariant != null ? numFoundNonVariant + numFoundVariant.size() : CollapseCounters.UNKNOWN;
+                        recorder.end(field, sort, scanned, groups, queue.size(), isExactCount, finishStart - collectStart, finishNanos);
+                        if (counters != null) {
+                            counters.record(scanned, groups, finishStart - collectStart, finishNanos);
+                            counters.recordQueue(heapReplacements, rejectedAtBottom, queue.size(),
+                                    numFoundVariant != null ? numFoundVariant.size() : CollapseCounters.UNKNOWN);
+                            counters.recordSegments(segmentNanos);
+                            counters.recordNumFoundSource(isExactCount ? CollapseCounters.EXACT : CollapseCounters.ESTIMATE);
+                        }
+                    }
+                }
+
+                private void finishQueue() throws IOException {
+                    if (isGroupFacets) {
+                        reqContext.put(COLLAPSING_GROUP_DOCSET, new BitDocSet(groupRepresentatives));
+                    }
+                    int numFound = isExactCount ? numFoundNonVariant + numFoundVariant.size() : totalHits;
+                    if (!alternativeQueues.isEmpty()) {
+                        NamedList<DocSlice> sortedLists = new NamedList<>();
+                        for (AlternativeSortQueue alternativeQueue : alternativeQueues) {
+                            sortedLists.add(alternativeQueue.name, alternativeQueue.toDocSlice(numFound, needsScores));
+                        }
+                        reqContext.put(COLLAPSING_SORTED_LISTS, sortedLists);
+                    }
                     if (queue.size() > 0) {
                         DummyScorer dummy = new DummyScorer();
 
                         ArrayList<EntryWithHash> entries = new ArrayList<EntryWithHash>(queue.size());
                         for (EntryWithHash entry : queue)
                             entries.add(entry);
+
+                        HeapTopDocsCollector heapCollector = (HeapTopDocsCollector) reqContext.get(COLLAPSING_HEAP_COLLECTOR);
+                        if (heapCollector != null) {
+                            // the queue is already in the order of the response, so the top docs collector does not sort it again
+                            heapCollector.setTopDocs(topDocsFromQueue(numFound));
+                            if (delegate == heapCollector) {
+                                publishGroups(entries);
+                                return;
+                            }
+                            // collectors Solr wrapped around it still get the heads, the top docs collector ignores them
+                        }
                         entries.sort(Comparator.comparingInt(a -> a.doc));
 
                         int currentContext = 0;
@@ -287,11 +778,43 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
                             leafDelegate.collect(contextDoc);
                         }
 
-                        reqContext.put(COLLAPSING_REQUEST_TOTAL_HITS,
-                                isExactCount ?
-                                        numFoundNonVariant + numFoundVariant.size() : totalHits
-                        );
+                        if (heapCollector == null) {
+                            reqContext.put(COLLAPSING_REQUEST_TOTAL_HITS, numFound);
+                        }
+                        publishGroups(entries);
+                    }
+                }
+
+                private void publishGroups(List<EntryWithHash> entries) {
+                    if (groupStats != null) {
+                        for (EntryWithHash entry : entries) {
+                            if (entry.kind == KEYED) {
+                                groupStats.addHead(entry.doc, entry.hash);
+                            }
+                        }
+                        reqContext.put(COLLAPSING_GROUP_STATS, groupStats);
+                    }
+
+                    if (isPublishHeads) {
+                        CollapsedHeads heads = new CollapsedHeads(field, keyType);
+                        for (EntryWithHash entry : entries) {
+                            if (entry.kind == KEYED) {
+                                heads.add(entry.doc, entry.hash);
+                            }
+                        }
+                        reqContext.put(COLLAPSING_HEADS, heads);
+                    }
+                }
+
+                /**
+                 * Pops the queue into field docs, best first, with the sort values kept in the comparator slots.
+                 */
+                private TopDocs topDocsFromQueue(int numFound) {
+                    FieldDoc[] fieldDocs = new FieldDoc[queue.size()];
+                    for (int i = fieldDocs.length - 1; i >= 0; i--) {
+                        fieldDocs[i] = queue.fillFields(queue.pop());
                     }
+                    return new TopFieldDocs(new TotalHits(numFound, TotalHits.Relation.EQUAL_TO), fieldDocs, rewrittenSortFields);
                 }
 
                 private int getNextDocBase(int currentContext) {
@@ -304,8 +827,19 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
         }
     }
 
-    private boolean isVariantDocument(long hash) {
-        return hash != EMPTY;
+    private GroupStats createGroupStats(SolrIndexSearcher searcher) {
+        if (statsFields.length == 0) {
+            return null;
+        }
+        FieldType[] statsFieldTypes = new FieldType[statsFields.length];
+        for (int i = 0; i < statsFields.length; i++) {
+            statsFieldTypes[i] = searcher.getSchema().getFieldType(statsFields[i]);
+        }
+        return new GroupStats(statsFields, statsFieldTypes);
+    }
+
+    private static boolean isGrouped(byte kind) {
+        return kind == KEYED || kind == NULL_GROUP;
     }
 
     @Override
@@ -324,12 +858,25 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
             return false;
         }
         FastCollapsingQueryFilter that = (FastCollapsingQueryFilter) o;
-        return Objects.equals(this.field, that.field);
+        return Objects.equals(this.field, that.field)
+                && this.keyType == that.keyType
+                && Objects.equals(this.keySource, that.keySource)
+                && this.isMemoizedKeys == that.isMemoizedKeys
+                && Objects.equals(this.sort, that.sort)
+                && this.queueSize == that.queueSize
+                && this.isExactCount == that.isExactCount
+                && this.groupLimit == that.groupLimit
+                && Arrays.equals(this.statsFields, that.statsFields)
+                && this.isGroupFacets == that.isGroupFacets
+                && this.isPublishHeads == that.isPublishHeads
+                && this.nullPolicy == that.nullPolicy
+                && Objects.equals(this.alternativeSorts, that.alternativeSorts);
     }
 
     @Override
     public int hashCode() {
-        return field.hashCode();
+        return 31 * Objects.hash(field, keyType, keySource, isMemoizedKeys, sort, queueSize, isExactCount, groupLimit,
+                isGroupFacets, isPublishHeads, nullPolicy, alternativeSorts) + Arrays.hashCode(statsFields);
     }
 
     private static class DummyScorer extends Scorer {
@@ -361,6 +908,181 @@ public class FastCollapsingQueryFilter extends ExtendedQueryBase implements Post
 
     }
 
+    /**
+     * Heads of the best groups under an alternative sort of the request, filled in the same pass as the main queue
+     * with the keys read for it. A document is compared with the head of its group in a spare comparator slot,
+     * like members of a group with a group limit.
+     */
+    private class AlternativeSortQueue {
+
+        final String name;
+        private final int size;
+        private final FieldValueHitQueue<EntryWithHash> queue;
+        private final LongObjectHashMap<EntryWithHash> keyToEntry;
+        private EntryWithHash nullGroupEntry;
+        private LeafFieldComparator comparator;
+        private int nextSlot;
+        private int spareSlot;
+        private boolean isFull;
+
+        AlternativeSortQueue(String name, SortField[] sortFields, int size) {
+            this.name = name;
+            this.size = size;
+            this.queue = FieldValueHitQueue.create(sortFields, size + 1);
+            this.keyToEntry = new LongObjectHashMap<>(size);
+            this.spareSlot = size;
+        }
+
+        void setNextReader(LeafReaderContext context) throws IOException {
+            comparator = new MultiLeafFieldComparator(queue.getComparators(context), queue.getReverseMul());
+            if (isFull) {
+                comparator.setBottom(queue.top().slot);
+            }
+        }
+
+        void setScorer(Scorable scorer) throws IOException {
+            comparator.setScorer(scorer);
+        }
+
+        void offer(int docNumber, int globalDoc, float score, long key, byte kind) throws IOException {
+            if (kind == IGNORED || (isFull && comparator.compareBottom(docNumber) <= 0)) {
+                return;
+            }
+            EntryWithHash head = kind == KEYED ? keyToEntry.get(key) : kind == NULL_GROUP ? nullGroupEntry : null;
+            if (head != null) {
+                comparator.copy(spareSlot, docNumber);
+                if (compareSlots(spareSlot, head.slot) >= 0) {
+                    return;
+                }
+                queue.remove(head);
+                int slot = head.slot;
+                head.slot = spareSlot;
+                spareSlot = slot;
+                head.doc = globalDoc;
+                head.score = score;
+                queue.add(head);
+            } else if (!isFull) {
+                comparator.copy(nextSlot, docNumber);
+                EntryWithHash entry = new EntryWithHash(nextSlot++, globalDoc, score, key, kind);
+                queue.add(entry);
+                putHead(entry);
+                isFull = queue.size() == size;
+            } else {
+                EntryWithHash bottom = queue.top();
+                removeHead(bottom);
+                comparator.copy(bottom.slot, docNumber);
+                bottom.doc = globalDoc;
+                bottom.score = score;
+                bottom.hash = key;
+                bottom.kind = kind;
+                queue.updateTop();
+                putHead(bottom);
+            }
+            if (isFull) {
+                comparator.setBottom(queue.top().slot);
+            }
+        }
+
+        private void putHead(EntryWithHash entry) {
+            if (entry.kind == KEYED) {
+                keyToEntry.put(entry.hash, entry);
+            } else if (entry.kind == NULL_GROUP) {
+                nullGroupEntry = entry;
+            }
+        }
+
+        private void removeHead(EntryWithHash entry) {
+            if (entry.kind == KEYED) {
+                keyToEntry.remove(entry.hash);
+            } else if (entry.kind == NULL_GROUP) {
+                nullGroupEntry = null;
+            }
+        }
+
+        private int compareSlots(int slot1, int slot2) {
+            FieldComparator<?>[] comparators = queue.getComparators();
+            int[] reverseMuls = queue.getReverseMul();
+            for (int i = 0; i < comparators.length; i++) {
+                int compare = reverseMuls[i] * comparators[i].compare(slot1, slot2);
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Pops the queue into a doc list, best first.
+         */
+        DocSlice toDocSlice(int numFound, boolean hasScores) {
+            int length = queue.size();
+            int[] docs = new int[length];
+            float[] scores = hasScores ? new float[length] : null;
+            float maxScore = Float.NaN;
+            for (int i = length - 1; i >= 0; i--) {
+                EntryWithHash entry = queue.pop();
+                docs[i] = entry.doc;
+                if (scores != null) {
+                    scores[i] = entry.score;
+                    maxScore = Float.isNaN(maxScore) ? entry.score : Math.max(maxScore, entry.score);
+                }
+            }
+            return new DocSlice(0, length, docs, scores, numFound, maxScore, TotalHits.Relation.EQUAL_TO);
+        }
+    }
+
+    /**
+     * Queue elements of a single group, in no particular order.
+     */
+    private static class GroupMembers {
+
+        final EntryWithHash[] entries;
+        int size;
+
+        GroupMembers(int limit) {
+            this.entries = new EntryWithHash[limit];
+        }
+
+        void add(EntryWithHash entry) {
+            entries[size++] = entry;
+        }
+
+        void remove(EntryWithHash entry) {
+            for (int i = 0; i < size; i++) {
+                if (entries[i] == entry) {
+                    entries[i] = entries[--size];
+                    entries[size] = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Exposes the buffered document and its captured score to the comparators while a batch is flushed.
+     */
+    private static class BatchScorer extends Scorable {
+
+        private final int[] docs;
+        private final float[] scores;
+        int index;
+
+        BatchScorer(int[] docs, float[] scores) {
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        @Override
+        public float score() {
+            return scores[index];
+        }
+
+        @Override
+        public int docID() {
+            return docs[index];
+        }
+    }
+
     private static Sort rewriteSort(Sort sort, IndexSearcher searcher) throws IOException {
         assert null != sort : "Sort must not be null";
         assert null != searcher : "Searcher must not be null";
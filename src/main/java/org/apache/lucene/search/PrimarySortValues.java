@@ -0,0 +1,80 @@
+package org.apache.lucene.search;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+
+import java.io.IOException;
+
+/**
+ * Reads values of the primary (first) sort clause in bulk, decoded to doubles, so that a block
+ * of buffered documents can be checked against the queue bottom in a single primitive loop.
+ * <p>
+ * Values are read from a doc values instance separate from the one used by the queue comparators,
+ * so the comparators can still be positioned on the surviving documents afterwards.
+ * Decoding to double is monotonic, so a document that is strictly worse after decoding is also
+ * strictly worse for the comparator; ties are always left to the comparator.
+ */
+class PrimarySortValues {
+
+    private final SortField sortField;
+    private final SortField.Type type;
+    private final double missingValue;
+    private NumericDocValues docValues;
+
+    private PrimarySortValues(SortField sortField) {
+        this.sortField = sortField;
+        this.type = sortField.getType();
+        Object missing = sortField.getMissingValue();
+        this.missingValue = missing == null ? 0d : ((Number) missing).doubleValue();
+    }
+
+    /**
+     * Returns a reader for the given sort clause, or null if its values can not be read in bulk
+     * (scores, strings, custom comparators, multi-valued fields).
+     */
+    static PrimarySortValues create(SortField sortField) {
+        if (sortField.getClass() != SortField.class) {
+            return null;
+        }
+        switch (sortField.getType()) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return new PrimarySortValues(sortField);
+            default:
+                return null;
+        }
+    }
+
+    void setNextReader(LeafReaderContext context) throws IOException {
+        docValues = DocValues.getNumeric(context.reader(), sortField.getField());
+    }
+
+    /**
+     * Reads decoded values of docs[0..length) into values; docs must be in ascending order.
+     */
+    void read(int[] docs, int length, double[] values) throws IOException {
+        for (int i = 0; i < length; i++) {
+            values[i] = docValues.advanceExact(docs[i]) ? decode(docValues.longValue()) : missingValue;
+        }
+    }
+
+    private double decode(long raw) {
+        switch (type) {
+            case INT:
+                return (int) raw;
+            case FLOAT:
+                return Float.intBitsToFloat((int) raw);
+            case DOUBLE:
+                return Double.longBitsToDouble(raw);
+            default:
+                return raw;
+        }
+    }
+
+    boolean isReverse() {
+        return sortField.getReverse();
+    }
+}
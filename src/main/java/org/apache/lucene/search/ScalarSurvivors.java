@@ -0,0 +1,21 @@
+package org.apache.lucene.search;
+
+/**
+ * Scalar loop of {@link SurvivorSelector}, used on Java 8 and when the Vector API is not available.
+ */
+final class ScalarSurvivors {
+
+    private ScalarSurvivors() {
+    }
+
+    static int select(double[] values, int length, double sign, double bottom, int[] survivors) {
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            // negated so that NaN values are left to the comparator
+            if (!(sign * values[i] > bottom)) {
+                survivors[count++] = i;
+            }
+        }
+        return count;
+    }
+}
@@ -141,6 +141,23 @@ public class SortFieldsCompare {
         return true;
     }
 
+    /**
+     * Compares the SortField values recorded for two groups, returns a negative number
+     * if the head of groupA comes first in accordance with the SortFields.
+     */
+    @SuppressWarnings("unchecked")
+    public int compareGroupValues(int groupA, int groupB) {
+        Object[] valuesA = groupHeadValues[groupA];
+        Object[] valuesB = groupHeadValues[groupB];
+        for (int clause = 0; clause < numClauses; clause++) {
+            int compare = reverseMul[clause] * fieldComparators[clause].compareValues(valuesA[clause], valuesB[clause]);
+            if (0 != compare) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
     /**
      * Grows all internal arrays to the specified minSize
      */
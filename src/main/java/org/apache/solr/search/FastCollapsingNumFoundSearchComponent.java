@@ -1,22 +1,144 @@
 package org.apache.solr.search;
 
+import com.carrotsearch.hppc.LongHashSet;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 import org.apache.lucene.search.TotalHits;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.response.BasicResultContext;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import pl.allegro.search.solr.qparser.CollapseCapture;
+import pl.allegro.search.solr.qparser.CollapseCounters;
+import pl.allegro.search.solr.qparser.CollapsedHeads;
 
-public class FastCollapsingNumFoundSearchComponent extends SearchComponent {
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class FastCollapsingNumFoundSearchComponent extends SearchComponent implements SolrCoreAware, SolrMetricProducer {
 
     public static final String COLLAPSING_REQUEST_TOTAL_HITS = "collapsing_total_hits";
+    public static final String COLLAPSING_LEVEL_COUNTS = "collapsing_level_counts";
+    public static final String COLLAPSING_GROUP_STATS = "collapsing_group_stats";
+    public static final String COLLAPSING_GROUP_DOCSET = "collapsing_group_docset";
+    public static final String COLLAPSING_HEADS = "collapsing_heads";
+    public static final String COLLAPSING_RESELECT_HEADS = "collapsing_reselect_heads";
+    public static final String COLLAPSING_RESELECT_PAGE = "collapsing_reselect_page";
+    public static final String COLLAPSING_SORTED_LISTS = "collapsing_sorted_lists";
+    public static final String COLLAPSING_COUNTERS = "collapsing_counters";
+    public static final String COLLAPSING_HEAP_COLLECTOR = "collapsing_heap_collector";
     public static final String HITS = "hits";
+    public static final String LEVEL_COUNTS = "collapseLevelCounts";
+    public static final String SORTED_LISTS = "collapsedSorts";
+    public static final String DEBUG = "collapse";
+
+    public static final String CAPTURE_FILE = "captureFile";
+    public static final String CAPTURE_FILE_SIZE = "captureFileSize";
+    public static final String CAPTURE_FILE_COUNT = "captureFileCount";
+    private static final int DEFAULT_CAPTURE_FILE_SIZE = 100 * 1024 * 1024;
+    private static final int DEFAULT_CAPTURE_FILE_COUNT = 5;
+
+    private CollapseCapture capture;
+
+    private SolrMetricsContext solrMetricsContext;
+    private Timer collectTimer;
+    private Timer finishTimer;
+    private Histogram hits;
+    private Histogram groups;
+    private Histogram heapReplacements;
+    private Histogram rejectedAtBottom;
+    private Histogram exactCountSetSize;
 
     @Override
-    public void prepare(ResponseBuilder rb) {
+    public void init(NamedList args) {
+        super.init(args);
+        SolrParams initArgs = args.toSolrParams();
+        String captureFile = initArgs.get(CAPTURE_FILE);
+        // an empty name disables the capture, e.g. when it comes from an unset property
+        if (captureFile != null && !captureFile.isEmpty()) {
+            try {
+                capture = new CollapseCapture(captureFile,
+                        initArgs.getInt(CAPTURE_FILE_SIZE, DEFAULT_CAPTURE_FILE_SIZE),
+                        initArgs.getInt(CAPTURE_FILE_COUNT, DEFAULT_CAPTURE_FILE_COUNT));
+            } catch (IOException e) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Cannot open capture file " + captureFile, e);
+            }
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        if (capture != null) {
+            core.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore core) {
+                }
+
+                @Override
+                public void postClose(SolrCore core) {
+                    capture.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers timers and histograms of the collapsing filters, updated once per request
+     * from the {@link CollapseCounters} the filter filled when it finished.
+     */
+    @Override
+    public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+        solrMetricsContext = parentContext.getChildContext(this);
+        String category = getCategory().toString();
+        collectTimer = solrMetricsContext.timer(this, "collect", category, scope, "time");
+        finishTimer = solrMetricsContext.timer(this, "finish", category, scope, "time");
+        hits = solrMetricsContext.histogram(this, "hits", category, scope);
+        groups = solrMetricsContext.histogram(this, "groups", category, scope);
+        heapReplacements = solrMetricsContext.histogram(this, "heapReplacements", category, scope);
+        rejectedAtBottom = solrMetricsContext.histogram(this, "rejectedAtBottom", category, scope);
+        exactCountSetSize = solrMetricsContext.histogram(this, "exactCountSetSize", category, scope);
+    }
 
+    @Override
+    public SolrMetricsContext getSolrMetricsContext() {
+        return solrMetricsContext;
+    }
+
+    /**
+     * With reselected heads every group passed to the rerank query can take up to <code>limit</code> documents,
+     * so the query asks for <code>limit</code> times more documents from the first one and the requested page
+     * is cut from the groups left after reselecting.
+     */
+    @Override
+    public void prepare(ResponseBuilder rb) {
+        Integer groupLimit = (Integer) rb.req.getContext().get(COLLAPSING_RESELECT_HEADS);
+        SortSpec sortSpec = rb.getSortSpec();
+        if (groupLimit != null && groupLimit > 1 && sortSpec != null) {
+            rb.req.getContext().put(COLLAPSING_RESELECT_PAGE, new int[]{sortSpec.getOffset(), sortSpec.getCount()});
+            sortSpec.setCount((sortSpec.getOffset() + sortSpec.getCount()) * groupLimit);
+            sortSpec.setOffset(0);
+        }
     }
 
     @Override
     public void process(ResponseBuilder rb) {
+        if (rb.req.getContext().containsKey(COLLAPSING_GROUP_DOCSET) && rb.getResults() != null) {
+            // facet components placed after this one count groups instead of documents
+            rb.getResults().docSet = (DocSet) rb.req.getContext().get(COLLAPSING_GROUP_DOCSET);
+        }
+        if (rb.req.getContext().containsKey(COLLAPSING_RESELECT_HEADS) && rb.req.getContext().containsKey(COLLAPSING_HEADS)) {
+            reselectHeads(rb, (CollapsedHeads) rb.req.getContext().get(COLLAPSING_HEADS));
+        }
         if (rb.req.getContext().containsKey(COLLAPSING_REQUEST_TOTAL_HITS)) {
             BasicResultContext response = (BasicResultContext) rb.rsp.getResponse();
             DocSlice docList = (DocSlice) response.getDocList();
@@ -26,6 +148,147 @@ public class FastCollapsingNumFoundSearchComponent extends SearchComponent {
             rb.rsp.addResponse(new BasicResultContext(modifiedDocList, response.getReturnFields(), response.getSearcher(), response.getQuery(), response.getRequest()));
             logResponse(rb, hits);
         }
+        if (rb.req.getContext().containsKey(COLLAPSING_LEVEL_COUNTS)) {
+            rb.rsp.add(LEVEL_COUNTS, rb.req.getContext().get(COLLAPSING_LEVEL_COUNTS));
+        }
+        if (rb.req.getContext().containsKey(COLLAPSING_SORTED_LISTS)) {
+            addSortedLists(rb, (NamedList<DocSlice>) rb.req.getContext().get(COLLAPSING_SORTED_LISTS));
+        }
+        CollapseCounters counters = (CollapseCounters) rb.req.getContext().get(COLLAPSING_COUNTERS);
+        if (counters != null) {
+            if (rb.isDebugTimings() || rb.isDebugQuery()) {
+                rb.addDebugInfo(DEBUG, debugInfo(counters));
+            }
+            updateMetrics(counters);
+            if (capture != null) {
+                capture(rb, counters);
+            }
+        }
+    }
+
+    /**
+     * Describes what the collapsing filter did: the strategy and why it was chosen, how numFound was produced,
+     * documents scanned and rejected at the bottom of the queue, groups, heap churn, peak sizes and timings in milliseconds.
+     * Counters the filter does not know are left out.
+     */
+    private NamedList<Object> debugInfo(CollapseCounters counters) {
+        SimpleOrderedMap<Object> info = new SimpleOrderedMap<>();
+        info.add("strategy", counters.getStrategy());
+        info.add("reason", counters.getReason());
+        info.add("numFound", counters.getNumFoundSource());
+        addKnown(info, "scanned", counters.getHits());
+        addKnown(info, "rejectedAtBottom", counters.getRejectedAtBottom());
+        addKnown(info, "groups", counters.getGroups());
+        addKnown(info, "heapReplacements", counters.getHeapReplacements());
+        addKnown(info, "queueSize", counters.getQueueSize());
+        addKnown(info, "exactCountSetSize", counters.getExactCountSetSize());
+        if (counters.getCollectNanos() != CollapseCounters.UNKNOWN) {
+            SimpleOrderedMap<Object> timing = new SimpleOrderedMap<>();
+            timing.add("collect", toMillis(counters.getCollectNanos()));
+            SimpleOrderedMap<Object> segments = new SimpleOrderedMap<>();
+            long[] segmentNanos = counters.getSegmentCollectNanos();
+            for (int ord = 0; ord < segmentNanos.length; ord++) {
+                segments.add(Integer.toString(ord), toMillis(segmentNanos[ord]));
+            }
+            timing.add("segments", segments);
+            timing.add("finish", toMillis(counters.getFinishNanos()));
+            info.add("timing", timing);
+        }
+        return info;
+    }
+
+    private static void addKnown(NamedList<Object> info, String name, long value) {
+        if (value != CollapseCounters.UNKNOWN) {
+            info.add(name, value);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private void updateMetrics(CollapseCounters counters) {
+        if (solrMetricsContext == null) {
+            return;
+        }
+        update(collectTimer, counters.getCollectNanos());
+        update(finishTimer, counters.getFinishNanos());
+        update(hits, counters.getHits());
+        update(groups, counters.getGroups());
+        update(heapReplacements, counters.getHeapReplacements());
+        update(rejectedAtBottom, counters.getRejectedAtBottom());
+        update(exactCountSetSize, counters.getExactCountSetSize());
+    }
+
+    private static void update(Timer timer, long nanos) {
+        if (nanos != CollapseCounters.UNKNOWN) {
+            timer.update(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void update(Histogram histogram, long value) {
+        if (value != CollapseCounters.UNKNOWN) {
+            histogram.update(value);
+        }
+    }
+
+    private void capture(ResponseBuilder rb, CollapseCounters counters) {
+        Object response = rb.rsp.getResponse();
+        long numFound = response instanceof ResultContext ? ((ResultContext) response).getDocList().matches() : CollapseCounters.UNKNOWN;
+        capture.write(rb.req.getParams(), counters, numFound, (long) rb.req.getRequestTimer().getTime());
+    }
+
+    /**
+     * Adds the page of the request (start and rows) of every list collapsed under an alternative sort.
+     */
+    private void addSortedLists(ResponseBuilder rb, NamedList<DocSlice> sortedLists) {
+        int offset = rb.getSortSpec().getOffset();
+        int count = rb.getSortSpec().getCount();
+        SimpleOrderedMap<DocList> pages = new SimpleOrderedMap<>();
+        for (Map.Entry<String, DocSlice> sortedList : sortedLists) {
+            pages.add(sortedList.getKey(), sortedList.getValue().subset(offset, count));
+        }
+        rb.rsp.add(SORTED_LISTS, pages);
+    }
+
+    /**
+     * Keeps only the best rescored document of every group, when several members of a group were passed to the rerank query.
+     * Documents are in the order of the rerank query, so the first document of a group is its new head.
+     */
+    private void reselectHeads(ResponseBuilder rb, CollapsedHeads heads) {
+        BasicResultContext response = (BasicResultContext) rb.rsp.getResponse();
+        DocSlice docList = (DocSlice) response.getDocList();
+        int[] docs = new int[docList.docs.length];
+        float[] scores = docList.scores == null ? null : new float[docList.docs.length];
+        LongHashSet seenGroups = new LongHashSet();
+        int kept = 0;
+        int keptBeforeOffset = 0;
+        for (int i = 0; i < docList.docs.length; i++) {
+            int doc = docList.docs[i];
+            if (heads.isHead(doc) && !seenGroups.add(heads.keyOf(doc))) {
+                continue;
+            }
+            if (i < docList.offset) {
+                keptBeforeOffset++;
+            }
+            docs[kept] = docList.docs[i];
+            if (scores != null) {
+                scores[kept] = docList.scores[i];
+            }
+            kept++;
+        }
+        int offset = keptBeforeOffset;
+        int len = Math.max(0, Math.min(docList.len, kept - keptBeforeOffset));
+        int[] page = (int[]) rb.req.getContext().get(COLLAPSING_RESELECT_PAGE);
+        if (page != null) {
+            // the page requested before prepare() enlarged it
+            offset = Math.min(page[0], kept);
+            len = Math.max(0, Math.min(page[1], kept - offset));
+        }
+        DocSlice reselected = new DocSlice(offset, len, docs, scores, docList.matches, docList.maxScore, docList.matchesRelation);
+        rb.getResults().docList = reselected;
+        rb.rsp.getValues().remove("response");
+        rb.rsp.addResponse(new BasicResultContext(reselected, response.getReturnFields(), response.getSearcher(), response.getQuery(), response.getRequest()));
     }
 
     private void logResponse(ResponseBuilder rb, Integer hits) {
@@ -36,6 +299,8 @@ public class FastCollapsingNumFoundSearchComponent extends SearchComponent {
 
     @Override
     public String getDescription() {
-        return "A component that processes search response updating its numFound if collapsing filter has changed it.";
+        return "A component that processes search response updating its numFound if collapsing filter has changed it " +
+                "and replacing the document set used for faceting with one document of every group if requested, " +
+                "showing what the collapsing filter did in the debug section and optionally capturing collapsing requests to a file.";
     }
 }
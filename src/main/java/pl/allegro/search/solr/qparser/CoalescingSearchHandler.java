@@ -0,0 +1,192 @@
+package pl.allegro.search.solr.qparser;
+
+import com.codahale.metrics.Counter;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.SearchHandler;
+import org.apache.solr.metrics.SolrMetricsContext;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.BasicResultContext;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.HITS;
+
+/**
+ * Search handler running concurrent identical requests once: requests with equal parameters on the same searcher
+ * wait for the one which came first and copy its response, see {@link RequestCoalescer}. Identical requests right
+ * after a commit would otherwise all scan with cold caches, since collapsing filters are not cached.
+ * <pre>
+ * &lt;requestHandler name="/select" class="pl.allegro.search.solr.qparser.CoalescingSearchHandler"&gt;
+ *     &lt;long name="coalesceTimeoutMillis"&gt;1000&lt;/long&gt;
+ *     ...
+ * &lt;/requestHandler&gt;
+ * </pre>
+ * Requests wait at most <code>coalesceTimeoutMillis</code> and then run themselves. Requests with a body,
+ * with debug or with <code>timeAllowed</code> are never coalesced, nor are requests of different users.
+ */
+public class CoalescingSearchHandler extends SearchHandler {
+
+    public static final String COALESCE_TIMEOUT = "coalesceTimeoutMillis";
+    private static final long DEFAULT_COALESCE_TIMEOUT = 1000;
+    private static final String COLLAPSING_CONTEXT_PREFIX = "collapsing_";
+    private static final String RESPONSE_HEADER = "responseHeader";
+
+    /**
+     * Parameters which change only how the response is written.
+     */
+    private static final Set<String> IGNORED_PARAMS = new HashSet<>(Arrays.asList(
+            CommonParams.WT, "indent", "_", CommonParams.OMIT_HEADER, CommonParams.HEADER_ECHO_PARAMS, "json.nl"));
+
+    private RequestCoalescer<Signature, Snapshot> coalescer;
+    private Counter coalesced;
+
+    @Override
+    public void init(NamedList args) {
+        super.init(args);
+        Object timeout = args.get(COALESCE_TIMEOUT);
+        coalescer = new RequestCoalescer<>(timeout == null ? DEFAULT_COALESCE_TIMEOUT : Long.parseLong(timeout.toString()));
+    }
+
+    @Override
+    public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+        super.initializeMetrics(parentContext, scope);
+        coalesced = getSolrMetricsContext().counter(this, "coalesced", getCategory().toString(), scope);
+    }
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        if (!isCoalescable(req)) {
+            super.handleRequestBody(req, rsp);
+            return;
+        }
+        RequestCoalescer.Result<Snapshot> result = coalescer.execute(new Signature(req), () -> {
+            super.handleRequestBody(req, rsp);
+            return new Snapshot(req, rsp);
+        });
+        if (result.isCoalesced()) {
+            result.getValue().copyTo(req, rsp);
+            if (coalesced != null) {
+                coalesced.inc();
+            }
+        }
+    }
+
+    private boolean isCoalescable(SolrQueryRequest req) {
+        SolrParams params = req.getParams();
+        return req.getContentStreams() == null
+                && params.get(CommonParams.DEBUG) == null
+                && !params.getBool(CommonParams.DEBUG_QUERY, false)
+                && params.get(CommonParams.TIME_ALLOWED) == null;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Search handler running concurrent identical requests once";
+    }
+
+    /**
+     * Parameters of a request, except those in {@link #IGNORED_PARAMS}, with filters in a canonical order,
+     * the searcher it runs on, so that document numbers of a copied response are valid, and the authenticated user,
+     * so that a response is never copied to a user who might not be allowed to see it.
+     */
+    private static final class Signature {
+
+        private final SolrIndexSearcher searcher;
+        private final Principal principal;
+        private final Map<String, List<String>> params = new TreeMap<>();
+        private final int hashCode;
+
+        Signature(SolrQueryRequest req) {
+            this.searcher = req.getSearcher();
+            this.principal = req.getUserPrincipal();
+            SolrParams requestParams = req.getParams();
+            Iterator<String> names = requestParams.getParameterNamesIterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!IGNORED_PARAMS.contains(name)) {
+                    List<String> values = new ArrayList<>(Arrays.asList(requestParams.getParams(name)));
+                    if (CommonParams.FQ.equals(name)) {
+                        Collections.sort(values);
+                    }
+                    params.put(name, values);
+                }
+            }
+            this.hashCode = 31 * (31 * System.identityHashCode(searcher) + Objects.hashCode(principal)) + params.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Signature signature = (Signature) o;
+            return searcher == signature.searcher && Objects.equals(principal, signature.principal)
+                    && Objects.equals(params, signature.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Response values of the request which ran and the collapsing entries of its context, read by components
+     * and transformers while the response is written.
+     */
+    private static final class Snapshot {
+
+        private final NamedList<Object> values = new NamedList<>();
+        private final Map<Object, Object> collapsingContext = new HashMap<>();
+        private final Object hits;
+
+        Snapshot(SolrQueryRequest req, SolrQueryResponse rsp) {
+            NamedList<?> responseValues = rsp.getValues();
+            for (int i = 0; i < responseValues.size(); i++) {
+                if (!RESPONSE_HEADER.equals(responseValues.getName(i))) {
+                    values.add(responseValues.getName(i), responseValues.getVal(i));
+                }
+            }
+            for (Map.Entry<Object, Object> entry : req.getContext().entrySet()) {
+                if (entry.getKey() instanceof String && ((String) entry.getKey()).startsWith(COLLAPSING_CONTEXT_PREFIX)) {
+                    collapsingContext.put(entry.getKey(), entry.getValue());
+                }
+            }
+            hits = rsp.getToLog().get(HITS);
+        }
+
+        void copyTo(SolrQueryRequest req, SolrQueryResponse rsp) {
+            req.getContext().putAll(collapsingContext);
+            ReturnFields returnFields = new SolrReturnFields(req);
+            rsp.setReturnFields(returnFields);
+            for (Map.Entry<String, Object> value : values) {
+                Object copy = value.getValue();
+                if (copy instanceof ResultContext) {
+                    ResultContext result = (ResultContext) copy;
+                    copy = new BasicResultContext(result.getDocList(), returnFields, req.getSearcher(), result.getQuery(), req);
+                }
+                rsp.add(value.getKey(), copy);
+            }
+            if (hits != null) {
+                rsp.getToLog().add(HITS, hits);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.solr.common.params.SolrParams;
+import org.noggit.JSONUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Writes collapsing requests to a local rolling file, one JSON object per line with the parameters of the request,
+ * the strategy chosen by {@link FastCollapsingQueryParserPlugin} and the {@link CollapseCounters} of the filter,
+ * so that they can be replayed against a copy of the index.
+ * <p>
+ * Files are rolled by {@link FileHandler}: when a file reaches the size limit the next one of the given count is used,
+ * the pattern can contain <code>%g</code> for the number of the file.
+ */
+public class CollapseCapture implements Closeable {
+
+    private final FileHandler fileHandler;
+
+    public CollapseCapture(String pattern, int fileSizeBytes, int fileCount) throws IOException {
+        this.fileHandler = new FileHandler(pattern, fileSizeBytes, fileCount, true);
+        fileHandler.setEncoding(StandardCharsets.UTF_8.name());
+        fileHandler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return record.getMessage() + "\n";
+            }
+        });
+    }
+
+    public void write(SolrParams params, CollapseCounters counters, long numFound, long elapsedMillis) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("timestamp", Instant.now().toString());
+        record.put("params", toMap(params));
+        record.put("strategy", counters.getStrategy());
+        record.put("hits", counters.getHits());
+        record.put("groups", counters.getGroups());
+        record.put("numFound", numFound);
+        record.put("collectNanos", counters.getCollectNanos());
+        record.put("finishNanos", counters.getFinishNanos());
+        record.put("elapsedMillis", elapsedMillis);
+        fileHandler.publish(new LogRecord(Level.INFO, JSONUtil.toJSON(record, -1)));
+    }
+
+    private static Map<String, Object> toMap(SolrParams params) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        Iterator<String> names = params.getParameterNamesIterator();
+        while (names.hasNext()) {
+            String name = names.next();
+            map.put(name, Arrays.asList(params.getParams(name)));
+        }
+        return map;
+    }
+
+    @Override
+    public void close() {
+        fileHandler.close();
+    }
+}
@@ -0,0 +1,145 @@
+package pl.allegro.search.solr.qparser;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What the collapsing filter of a request did, put in the request context by {@link FastCollapsingQueryParserPlugin}
+ * and filled by the filter when it finishes, so that {@link org.apache.solr.search.FastCollapsingNumFoundSearchComponent}
+ * can capture it and show it in the debug section of the response. Filters count in local variables while collecting
+ * and set the totals once.
+ */
+public class CollapseCounters {
+
+    public static final String FAST = "fast";
+    public static final String SUM = "sum";
+    public static final String FULL = "full";
+    public static final String MULTI_LEVEL = "multiLevel";
+    public static final String MIN_MAX = "minMax";
+    public static final List<String> STRATEGIES = Arrays.asList(FAST, SUM, FULL, MULTI_LEVEL, MIN_MAX);
+
+    /**
+     * Value of counters the filter does not know.
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * numFound is the number of groups counted exactly.
+     */
+    public static final String EXACT = "exact";
+    /**
+     * numFound is the number of documents which reached the response collector, exact when the filter passes
+     * all heads of groups.
+     */
+    public static final String TOTAL_HITS = "totalHits";
+    /**
+     * numFound is the number of documents which did not replace the head of their group in the queue,
+     * an upper bound of the number of groups.
+     */
+    public static final String ESTIMATE = "estimate";
+
+    private static final long[] NO_SEGMENTS = new long[0];
+
+    private final String strategy;
+    private final String reason;
+    private String numFoundSource = TOTAL_HITS;
+    private long hits = UNKNOWN;
+    private long groups = UNKNOWN;
+    private long exactCountSetSize = UNKNOWN;
+    private long heapReplacements = UNKNOWN;
+    private long rejectedAtBottom = UNKNOWN;
+    private long queueSize = UNKNOWN;
+    private long[] segmentCollectNanos = NO_SEGMENTS;
+    private long collectNanos = UNKNOWN;
+    private long finishNanos = UNKNOWN;
+
+    public CollapseCounters(String strategy, String reason) {
+        this.strategy = strategy;
+        this.reason = reason;
+    }
+
+    /**
+     * Records totals of the filter, the collect phase is timed from the creation of the collector,
+     * so it includes matching documents by the main query and the other filters.
+     */
+    public void record(long hits, long groups, long collectNanos, long finishNanos) {
+        this.hits = hits;
+        this.groups = groups;
+        this.collectNanos = collectNanos;
+        this.finishNanos = finishNanos;
+    }
+
+    /**
+     * Records totals of the priority queue of {@link org.apache.lucene.search.FastCollapsingQueryFilter}:
+     * documents which entered the full queue (replacing its bottom or the head of their group),
+     * documents rejected by the comparison with the bottom of the queue and the largest sizes of the queue and of the set
+     * of keys used to count groups exactly (neither of them shrinks while collecting).
+     */
+    public void recordQueue(long heapReplacements, long rejectedAtBottom, long queueSize, long exactCountSetSize) {
+        this.heapReplacements = heapReplacements;
+        this.rejectedAtBottom = rejectedAtBottom;
+        this.queueSize = queueSize;
+        this.exactCountSetSize = exactCountSetSize;
+    }
+
+    /**
+     * Records the time spent collecting every segment, by the ordinal of the segment, from the moment the collector
+     * moved to the segment until it moved to the next one. It includes matching documents by the main query and the other
+     * filters, segments without matches are not visited and have no time.
+     */
+    public void recordSegments(long[] segmentCollectNanos) {
+        this.segmentCollectNanos = segmentCollectNanos;
+    }
+
+    public void recordNumFoundSource(String numFoundSource) {
+        this.numFoundSource = numFoundSource;
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getNumFoundSource() {
+        return numFoundSource;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getGroups() {
+        return groups;
+    }
+
+    public long getExactCountSetSize() {
+        return exactCountSetSize;
+    }
+
+    public long getHeapReplacements() {
+        return heapReplacements;
+    }
+
+    public long getRejectedAtBottom() {
+        return rejectedAtBottom;
+    }
+
+    public long getQueueSize() {
+        return queueSize;
+    }
+
+    public long[] getSegmentCollectNanos() {
+        return segmentCollectNanos;
+    }
+
+    public long getCollectNanos() {
+        return collectNanos;
+    }
+
+    public long getFinishNanos() {
+        return finishNanos;
+    }
+}
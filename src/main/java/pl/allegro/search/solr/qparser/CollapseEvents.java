@@ -0,0 +1,32 @@
+package pl.allegro.search.solr.qparser;
+
+/**
+ * Java Flight Recorder events of collapse executions and of the segments they collect, emitted when enabled
+ * in the settings of a recording:
+ * <pre>
+ * pl.allegro.search.solr.qparser.Collapse#enabled=true
+ * pl.allegro.search.solr.qparser.CollapseSegment#enabled=true
+ * </pre>
+ * Classes of the events are loaded only when the JVM has JFR, otherwise and when neither event is enabled
+ * collectors get {@link CollapseRecorder#NOOP}.
+ */
+public final class CollapseEvents {
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private CollapseEvents() {
+    }
+
+    public static CollapseRecorder recorder() {
+        return JFR_AVAILABLE && JfrCollapseRecorder.isEnabled() ? new JfrCollapseRecorder() : CollapseRecorder.NOOP;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, CollapseEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
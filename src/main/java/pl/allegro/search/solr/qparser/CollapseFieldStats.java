@@ -0,0 +1,172 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.BitUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static pl.allegro.search.solr.qparser.SortedDocValuesHash.ORDINAL_OFFSET;
+
+/**
+ * Distribution of keys of a collapse field in a segment: documents with a key, distinct keys, the histogram
+ * of group sizes and the largest groups.
+ * <p>
+ * Statistics are computed from doc values once per segment, field and generation of doc values, and cached by the core
+ * key of the segment until it is closed, so a new searcher computes only its new or updated segments. Deletes do not
+ * change the core key, so deleted documents are counted until their segment is merged.
+ */
+public class CollapseFieldStats {
+
+    /**
+     * Number of the largest groups kept for every segment.
+     */
+    public static final int TOP_GROUPS = 100;
+
+    private static final Map<IndexReader.CacheKey, Map<String, CollapseFieldStats>> SEGMENTS = new ConcurrentHashMap<>();
+
+    private final long docValuesGen;
+    private final int maxDoc;
+    private final int docsWithKey;
+    private final int distinctKeys;
+    // number of groups of sizes from 2^i to 2^(i+1)-1
+    private final long[] groupSizes;
+    private final List<Group> topGroups;
+
+    private CollapseFieldStats(long docValuesGen, int maxDoc, int docsWithKey, int distinctKeys, long[] groupSizes, List<Group> topGroups) {
+        this.docValuesGen = docValuesGen;
+        this.maxDoc = maxDoc;
+        this.docsWithKey = docsWithKey;
+        this.distinctKeys = distinctKeys;
+        this.groupSizes = groupSizes;
+        this.topGroups = topGroups;
+    }
+
+    /**
+     * Returns statistics of the field in the segment, computed by the first call for the segment and generation
+     * of its doc values.
+     */
+    public static CollapseFieldStats of(LeafReaderContext leaf, String field, SortedDocValuesHash.KeyType keyType) throws IOException {
+        long docValuesGen = KeySidecars.docValuesGen(leaf);
+        IndexReader.CacheHelper cacheHelper = FunctionKeys.cacheHelperOf(leaf);
+        if (cacheHelper == null) {
+            return compute(leaf, field, keyType, docValuesGen);
+        }
+        Map<String, CollapseFieldStats> fields = SEGMENTS.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(SEGMENTS::remove);
+            return new ConcurrentHashMap<>();
+        });
+        CollapseFieldStats stats = fields.get(field);
+        if (stats == null || stats.docValuesGen != docValuesGen) {
+            stats = compute(leaf, field, keyType, docValuesGen);
+            fields.put(field, stats);
+        }
+        return stats;
+    }
+
+    private static CollapseFieldStats compute(LeafReaderContext leaf, String field, SortedDocValuesHash.KeyType keyType, long docValuesGen) throws IOException {
+        int maxDoc = leaf.reader().maxDoc();
+        SortedDocValuesHash keys = SortedDocValuesHash.create(leaf, field, keyType, null);
+        LongIntHashMap counts = new LongIntHashMap();
+        int docsWithKey = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (keys.advanceExact(doc)) {
+                counts.addTo(keys.key(), 1);
+                docsWithKey++;
+            }
+        }
+
+        long[] groupSizes = new long[Integer.SIZE];
+        PriorityQueue<LongIntCursor> largest = new PriorityQueue<>(TOP_GROUPS + 1, Comparator.comparingInt(cursor -> cursor.value));
+        for (LongIntCursor cursor : counts) {
+            groupSizes[31 - Integer.numberOfLeadingZeros(cursor.value)]++;
+            LongIntCursor copy = new LongIntCursor();
+            copy.key = cursor.key;
+            copy.value = cursor.value;
+            largest.add(copy);
+            if (largest.size() > TOP_GROUPS) {
+                largest.poll();
+            }
+        }
+
+        SortedDocValues labels = keyType == SortedDocValuesHash.KeyType.ORDINAL ? DocValues.getSorted(leaf.reader(), field) : null;
+        List<Group> topGroups = new ArrayList<>(largest.size());
+        for (LongIntCursor cursor : largest) {
+            String key = labels == null ? Long.toString(cursor.key) : labels.lookupOrd((int) (cursor.key - ORDINAL_OFFSET)).utf8ToString();
+            topGroups.add(new Group(key, cursor.value));
+        }
+        topGroups.sort(Comparator.comparingLong(Group::getSize).reversed());
+        return new CollapseFieldStats(docValuesGen, maxDoc, docsWithKey, counts.size(), groupSizes, Collections.unmodifiableList(topGroups));
+    }
+
+    /**
+     * Bytes of the set of keys {@link org.apache.lucene.search.FastCollapsingQueryFilter} builds to count the given number
+     * of groups exactly (<code>exactCount=true</code>), a hash set of longs with the default load factor.
+     */
+    public static long exactCountSetBytes(long groups) {
+        return BitUtil.nextHighestPowerOfTwo((long) Math.ceil(Math.max(1, groups) / 0.75d)) * Long.BYTES;
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    public int getDocsWithKey() {
+        return docsWithKey;
+    }
+
+    public int getDistinctKeys() {
+        return distinctKeys;
+    }
+
+    /**
+     * Returns the number of groups of sizes from <code>2^i</code> to <code>2^(i+1)-1</code> by <code>i</code>.
+     */
+    public long[] getGroupSizes() {
+        return groupSizes;
+    }
+
+    /**
+     * Returns the largest groups of the segment, at most {@link #TOP_GROUPS}, the largest first.
+     */
+    public List<Group> getTopGroups() {
+        return topGroups;
+    }
+
+    /**
+     * Number of segments with statistics, for tests.
+     */
+    static int cachedSegments() {
+        return SEGMENTS.size();
+    }
+
+    public static final class Group {
+
+        private final String key;
+        private final long size;
+
+        Group(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.search.FastCollapsingQueryFilter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the distribution of keys of collapse fields, to choose rows, heap sizes, exact or approximate counting
+ * and key fields: <code>/collapseStats?field=variant&amp;top=10&amp;rows=60</code>.
+ * <p>
+ * For every field and segment it returns documents with a key, the ratio of documents without one, distinct keys,
+ * the histogram of group sizes (groups of 1, 2-3, 4-7... documents) and the largest groups. For the whole index
+ * it returns the same counts, distinct keys exact for string fields and an upper bound for numeric ones, the largest
+ * groups summed over segments (a lower bound of their sizes) and the estimated memory of a collapse query
+ * with the given rows, its queue sized for a sort on one numeric field. Segment statistics are cached,
+ * see {@link CollapseFieldStats}.
+ */
+public class CollapseFieldStatsHandler extends RequestHandlerBase {
+
+    private static final int DEFAULT_TOP = 10;
+    private static final int DEFAULT_ROWS = 10;
+    /**
+     * Bytes of a document in the queue of {@link FastCollapsingQueryFilter} sorted by one numeric field.
+     */
+    private static final long QUEUE_BYTES_PER_ROW = FastCollapsingQueryFilter.queueBytesPerRow(1);
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
+        SolrParams params = req.getParams();
+        String[] fields = params.getParams("field");
+        if (fields == null || fields.length == 0) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "At least one field parameter is required");
+        }
+        int top = Math.min(CollapseFieldStats.TOP_GROUPS, params.getInt("top", DEFAULT_TOP));
+        int rows = params.getInt("rows", DEFAULT_ROWS);
+        SolrIndexSearcher searcher = req.getSearcher();
+        SimpleOrderedMap<Object> fieldStats = new SimpleOrderedMap<>();
+        for (String fieldList : fields) {
+            for (String field : fieldList.split(",")) {
+                field = field.trim();
+                if (!field.isEmpty()) {
+                    fieldStats.add(field, fieldStats(searcher, field, top, rows));
+                }
+            }
+        }
+        rsp.add("fields", fieldStats);
+    }
+
+    private NamedList<Object> fieldStats(SolrIndexSearcher searcher, String field, int top, int rows) throws IOException {
+        SortedDocValuesHash.KeyType keyType = SortedDocValuesHash.KeyType.of(searcher.getSchema().getFieldType(field));
+        long maxDoc = 0;
+        long docsWithKey = 0;
+        long distinctKeys = 0;
+        Map<String, Long> topGroups = new LinkedHashMap<>();
+        List<NamedList<Object>> segments = new ArrayList<>();
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            CollapseFieldStats stats = CollapseFieldStats.of(leaf, field, keyType);
+            maxDoc += stats.getMaxDoc();
+            docsWithKey += stats.getDocsWithKey();
+            distinctKeys += stats.getDistinctKeys();
+            for (CollapseFieldStats.Group group : stats.getTopGroups()) {
+                topGroups.merge(group.getKey(), group.getSize(), Long::sum);
+            }
+            segments.add(segmentStats(leaf, stats, top));
+        }
+        boolean isDistinctExact = segments.size() <= 1;
+        OrdinalMap ordinalMap = SortedDocValuesHash.getOrdinalMap(searcher, field, keyType);
+        if (ordinalMap != null) {
+            distinctKeys = ordinalMap.getValueCount();
+            isDistinctExact = true;
+        }
+
+        SimpleOrderedMap<Object> stats = new SimpleOrderedMap<>();
+        stats.add("keyType", keyType.name());
+        stats.add("maxDoc", maxDoc);
+        stats.add("docsWithKey", docsWithKey);
+        stats.add("nullRatio", nullRatio(maxDoc, docsWithKey));
+        stats.add("distinctKeys", distinctKeys);
+        stats.add("isDistinctExact", isDistinctExact);
+        SimpleOrderedMap<Long> largest = new SimpleOrderedMap<>();
+        topGroups.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(group -> largest.add(group.getKey(), group.getValue()));
+        stats.add("topGroups", largest);
+        SimpleOrderedMap<Object> memory = new SimpleOrderedMap<>();
+        memory.add("rows", rows);
+        memory.add("queueBytesPerRow", QUEUE_BYTES_PER_ROW);
+        memory.add("queueBytes", rows * QUEUE_BYTES_PER_ROW);
+        memory.add("exactCountBytes", CollapseFieldStats.exactCountSetBytes(distinctKeys));
+        memory.add("groupFacetsBytes", (maxDoc + 7) / 8);
+        stats.add("memory", memory);
+        stats.add("segments", segments);
+        return stats;
+    }
+
+    private NamedList<Object> segmentStats(LeafReaderContext leaf, CollapseFieldStats stats, int top) {
+        SimpleOrderedMap<Object> segment = new SimpleOrderedMap<>();
+        segment.add("ord", leaf.ord);
+        segment.add("maxDoc", stats.getMaxDoc());
+        segment.add("docsWithKey", stats.getDocsWithKey());
+        segment.add("nullRatio", nullRatio(stats.getMaxDoc(), stats.getDocsWithKey()));
+        segment.add("distinctKeys", stats.getDistinctKeys());
+        SimpleOrderedMap<Long> groupSizes = new SimpleOrderedMap<>();
+        long[] sizes = stats.getGroupSizes();
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] > 0) {
+                long from = 1L << i;
+                long to = (1L << (i + 1)) - 1;
+                groupSizes.add(from == to ? Long.toString(from) : from + "-" + to, sizes[i]);
+            }
+        }
+        segment.add("groupSizes", groupSizes);
+        SimpleOrderedMap<Long> largest = new SimpleOrderedMap<>();
+        for (CollapseFieldStats.Group group : stats.getTopGroups().subList(0, Math.min(top, stats.getTopGroups().size()))) {
+            largest.add(group.getKey(), group.getSize());
+        }
+        segment.add("topGroups", largest);
+        return segment;
+    }
+
+    private static double nullRatio(long maxDoc, long docsWithKey) {
+        return maxDoc == 0 ? 0 : (double) (maxDoc - docsWithKey) / maxDoc;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Distribution of keys of collapse fields: distinct keys, documents without a key, group sizes, " +
+                "the largest groups and the estimated memory of collapsing.";
+    }
+}
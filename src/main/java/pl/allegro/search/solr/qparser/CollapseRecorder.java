@@ -0,0 +1,35 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.search.Sort;
+
+/**
+ * Receives the phases of a collapse execution from the collector of {@link org.apache.lucene.search.FastCollapsingQueryFilter},
+ * see {@link CollapseEvents}. Counts of scanned documents are totals of the execution so far.
+ */
+public interface CollapseRecorder {
+
+    CollapseRecorder NOOP = new CollapseRecorder() {
+        @Override
+        public void beginSegment(int ord, int maxDoc, long scanned) {
+        }
+
+        @Override
+        public void endSegment(long scanned) {
+        }
+
+        @Override
+        public void end(String field, Sort sort, long scanned, long groups, int queueSize, boolean isExactCount,
+                        long collectNanos, long finishNanos) {
+        }
+    };
+
+    void beginSegment(int ord, int maxDoc, long scanned);
+
+    void endSegment(long scanned);
+
+    /**
+     * Called at the end of <code>finish()</code>, the sort is turned into text only when an event is recorded.
+     */
+    void end(String field, Sort sort, long scanned, long groups, int queueSize, boolean isExactCount,
+             long collectNanos, long finishNanos);
+}
@@ -0,0 +1,49 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.transform.DocTransformer;
+import org.apache.solr.response.transform.TransformerFactory;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_GROUP_STATS;
+
+/**
+ * Adds stats of the group computed by the collapsing filter (see the stats local parameter) to every returned group head,
+ * e.g. <code>fl=*,[collapseStats]</code>.
+ */
+public class CollapseStatsTransformerFactory extends TransformerFactory {
+
+    @Override
+    public DocTransformer create(String field, SolrParams params, SolrQueryRequest req) {
+        return new CollapseStatsTransformer(field, req);
+    }
+
+    private static class CollapseStatsTransformer extends DocTransformer {
+
+        private final String name;
+        private final SolrQueryRequest req;
+
+        CollapseStatsTransformer(String name, SolrQueryRequest req) {
+            this.name = name;
+            this.req = req;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void transform(SolrDocument doc, int docid) {
+            GroupStats groupStats = (GroupStats) req.getContext().get(COLLAPSING_GROUP_STATS);
+            if (groupStats == null) {
+                return;
+            }
+            Object stats = groupStats.forHead(docid);
+            if (stats != null) {
+                doc.setField(name, stats);
+            }
+        }
+    }
+}
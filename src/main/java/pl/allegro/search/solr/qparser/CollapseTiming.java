@@ -0,0 +1,68 @@
+package pl.allegro.search.solr.qparser;
+
+import java.util.Map;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_COUNTERS;
+
+/**
+ * Fills the {@link CollapseCounters} of the request for the filters of this package, the way
+ * {@link org.apache.lucene.search.FastCollapsingQueryFilter} fills them: the collect phase is timed from the creation
+ * of the collector until <code>finish()</code>, every segment from the moment the collector moved to it until it moved
+ * to the next one or finished, and the finish phase until the heads are passed to the delegate.
+ * Does nothing when the request has no counters, e.g. for a filter created outside of the parser.
+ */
+final class CollapseTiming {
+
+    private final CollapseCounters counters;
+    private final long collectStart = System.nanoTime();
+    private final long[] segmentNanos;
+    private int segmentOrd = -1;
+    private long segmentStart;
+    private long finishStart;
+
+    private CollapseTiming(CollapseCounters counters, int leafCount) {
+        this.counters = counters;
+        this.segmentNanos = counters != null ? new long[leafCount] : null;
+    }
+
+    static CollapseTiming start(Map<Object, Object> reqContext, int leafCount) {
+        return new CollapseTiming(reqContext != null ? (CollapseCounters) reqContext.get(COLLAPSING_COUNTERS) : null, leafCount);
+    }
+
+    /**
+     * Called when the collector moves to the segment, one {@link System#nanoTime()} call per segment.
+     */
+    void beginSegment(int ord) {
+        if (segmentNanos != null) {
+            endSegment();
+            segmentOrd = ord;
+        }
+    }
+
+    void beginFinish() {
+        if (segmentNanos != null) {
+            endSegment();
+        }
+        finishStart = System.nanoTime();
+    }
+
+    private void endSegment() {
+        long now = System.nanoTime();
+        if (segmentOrd >= 0) {
+            segmentNanos[segmentOrd] = now - segmentStart;
+        }
+        segmentStart = now;
+    }
+
+    /**
+     * Records the documents collected by the filter, the groups it found and how numFound is produced from them,
+     * at the end of <code>finish()</code>.
+     */
+    void end(long hits, long groups, String numFoundSource) {
+        if (counters != null) {
+            counters.record(hits, groups, finishStart - collectStart, System.nanoTime() - finishStart);
+            counters.recordSegments(segmentNanos);
+            counters.recordNumFoundSource(numFoundSource);
+        }
+    }
+}
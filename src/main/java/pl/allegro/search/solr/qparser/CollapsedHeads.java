@@ -0,0 +1,45 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.IntLongHashMap;
+
+/**
+ * Group keys of the heads chosen by the collapsing filter, published in the request context
+ * so that the members of only the returned groups can be looked up (see {@link FastExpandComponent}).
+ */
+public class CollapsedHeads {
+
+    private final String field;
+    private final SortedDocValuesHash.KeyType keyType;
+    private final IntLongHashMap headToKey = new IntLongHashMap();
+
+    public CollapsedHeads(String field, SortedDocValuesHash.KeyType keyType) {
+        this.field = field;
+        this.keyType = keyType;
+    }
+
+    /**
+     * Adds a head given by its global document, only heads with a value of the collapsing field should be added.
+     */
+    public void add(int globalDoc, long key) {
+        headToKey.put(globalDoc, key);
+    }
+
+    public boolean isHead(int globalDoc) {
+        return headToKey.containsKey(globalDoc);
+    }
+
+    /**
+     * Returns the key of the given head, the document has to be a head of a group (see {@link #isHead(int)}).
+     */
+    public long keyOf(int globalDoc) {
+        return headToKey.get(globalDoc);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public SortedDocValuesHash.KeyType getKeyType() {
+        return keyType;
+    }
+}
@@ -1,19 +1,23 @@
 package pl.allegro.search.solr.qparser;
 
+import com.carrotsearch.hppc.IntFloatHashMap;
 import com.carrotsearch.hppc.LongFloatHashMap;
 import com.carrotsearch.hppc.LongIntHashMap;
 import com.carrotsearch.hppc.cursors.LongIntCursor;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortFieldsCompare;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.search.DelegatingCollector;
 import org.apache.solr.search.ExtendedQueryBase;
@@ -24,12 +28,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static pl.allegro.search.solr.qparser.SortedDocValuesHash.EMPTY;
-
 
 public class CollapsingQueryFilter extends ExtendedQueryBase implements PostFilter {
 
@@ -37,17 +40,16 @@ public class CollapsingQueryFilter extends ExtendedQueryBase implements PostFilt
 
     public static final int INIT_COLLAPSED_SET_SIZE = 100;
     private final String field;
-    private final FieldType fieldType;
+    private final SortedDocValuesHash.KeyType keyType;
 
     private final Sort sort;
+    private final Map<Object, Object> reqContext;
 
-    private long previousOrd;
-    private boolean firstDocumentInSegment;
-
-    public CollapsingQueryFilter(String field, FieldType fieldType, Sort sort) {
+    public CollapsingQueryFilter(String field, FieldType fieldType, Sort sort, Map<Object, Object> reqContext) {
         this.field = field;
-        this.fieldType = fieldType;
+        this.keyType = SortedDocValuesHash.KeyType.of(fieldType);
         this.sort = sort;
+        this.reqContext = reqContext;
     }
 
     @Override
@@ -55,117 +57,135 @@ public class CollapsingQueryFilter extends ExtendedQueryBase implements PostFilt
         SolrIndexSearcher searcher = (SolrIndexSearcher) indexSearcher;
         int leafCount = searcher.getTopReaderContext().leaves().size();
         try {
+            OrdinalMap ordinalMap = SortedDocValuesHash.getOrdinalMap(searcher, field, keyType);
             Sort rewrittenSort = rewriteSort(sort, searcher);
+            CollapseTiming timing = CollapseTiming.start(reqContext, leafCount);
             return new DelegatingCollector() {
                 private SortedDocValuesHash sortedDocValuesHash;
+                private int hits;
                 private LeafReaderContext[] contexts = new LeafReaderContext[leafCount];
                 private LongIntHashMap valuesDocIds = new LongIntHashMap(INIT_COLLAPSED_SET_SIZE);
                 private LongIntHashMap valuesToIndex = new LongIntHashMap(INIT_COLLAPSED_SET_SIZE);
-                private LongFloatHashMap scores = new LongFloatHashMap(INIT_COLLAPSED_SET_SIZE);
+                private LongFloatHashMap scores;
                 private final SortFieldsCompare compareState = new SortFieldsCompare(rewrittenSort.getSort(), INIT_COLLAPSED_SET_SIZE);
+                // documents passed to the delegate: heads and documents without a value of the collapsing field
+                private final FixedBitSet collapsedDocs = new FixedBitSet(searcher.maxDoc());
+                private IntFloatHashMap nullScores;
 
                 @Override
                 protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    timing.beginSegment(context.ord);
                     super.doSetNextReader(context);
-                    sortedDocValuesHash = new SortedDocValuesHash(context.reader(), field, fieldType);
+                    sortedDocValuesHash = SortedDocValuesHash.create(context, field, keyType, ordinalMap);
                     this.contexts[context.ord] = context;
-                    firstDocumentInSegment = true;
                     compareState.setNextReader(context);
                 }
 
+                /**
+                 * Scores are needed only if the collapse sort or the delegate uses them,
+                 * otherwise they are neither computed nor stored.
+                 */
+                @Override
+                public ScoreMode scoreMode() {
+                    return rewrittenSort.needsScores() ? ScoreMode.COMPLETE : super.scoreMode();
+                }
+
                 @Override
                 public void setScorer(Scorable scorer) throws IOException {
                     super.setScorer(scorer);
                     this.compareState.setScorer(scorer);
+                    if (scores == null && scoreMode().needsScores()) {
+                        scores = new LongFloatHashMap(INIT_COLLAPSED_SET_SIZE);
+                        nullScores = new IntFloatHashMap(INIT_COLLAPSED_SET_SIZE);
+                    }
                 }
 
                 @Override
                 public void collect(int docNumber) throws IOException {
                     int globalDoc = docNumber+this.docBase;
+                    hits++;
 
-                    if (!firstDocumentInSegment && previousOrd == EMPTY) {
-                        leafDelegate.setScorer(createScorer(docNumber));
-                        super.collect(docNumber);
-                        return;
-                    }
-
-                    long collapsedFieldHash = sortedDocValuesHash.getHash(docNumber);
-
-                    if (collapsedFieldHash == EMPTY) {
-                        leafDelegate.setScorer(createScorer(docNumber));
-                        super.collect(docNumber);
+                    if (!sortedDocValuesHash.advanceExact(docNumber)) {
+                        // passed on in finish(), so that the delegate gets every segment only once
+                        collapsedDocs.set(globalDoc);
+                        if (nullScores != null) {
+                            nullScores.put(globalDoc, scorer.score());
+                        }
                     }else{
+                        long collapsedFieldHash = sortedDocValuesHash.key();
                         if (valuesDocIds.containsKey(collapsedFieldHash)){
                             int variantIndex = valuesToIndex.get(collapsedFieldHash);
                             if (compareState.testAndSetGroupValues(variantIndex, docNumber)) {
                                 valuesDocIds.put(collapsedFieldHash,globalDoc);
-                                scores.put(collapsedFieldHash,scorer.score());
+                                if (scores != null) {
+                                    scores.put(collapsedFieldHash,scorer.score());
+                                }
                             }
                         } else {
                             valuesDocIds.put(collapsedFieldHash,globalDoc);
                             int variantIndex = nextId.incrementAndGet();
                             valuesToIndex.put(collapsedFieldHash, variantIndex);
-                            scores.put(collapsedFieldHash,scorer.score());
+                            if (scores != null) {
+                                scores.put(collapsedFieldHash,scorer.score());
+                            }
                             if (compareState.groupHeadValues.length <= variantIndex) {
                                 compareState.grow(compareState.groupHeadValues.length *2);
                             }
                             compareState.setGroupValues(variantIndex, docNumber);
                         }
                     }
-                    previousOrd = collapsedFieldHash;
-                    firstDocumentInSegment = false;
                 }
                 AtomicInteger nextId = new AtomicInteger();
 
+                /**
+                 * Passes heads and documents without a value to the delegate in order of documents,
+                 * asking for the leaf collector of every segment once. Collectors like the one of /export
+                 * create per segment state in getLeafCollector, so a segment must not be visited twice.
+                 */
                 @Override
                 public void finish() throws IOException {
-                    DummyScorer dummy = new DummyScorer();
+                    timing.beginFinish();
+                    IntFloatHashMap headScores = scores != null ? new IntFloatHashMap(valuesDocIds.size()) : null;
                     for (LongIntCursor valuesDocId : valuesDocIds) {
-                        int currentContext = 0;int currentDocBase = 0;
-                        int nextDocBase = getNextDocBase(currentContext);
-                        leafDelegate = delegate.getLeafCollector(contexts[currentContext]);
-                        int docId = valuesDocId.value;
-                        while (docId >= nextDocBase) {
-                            currentContext++;
+                        collapsedDocs.set(valuesDocId.value);
+                        if (headScores != null) {
+                            headScores.put(valuesDocId.value, scores.get(valuesDocId.key));
+                        }
+                    }
+
+                    DummyScorer dummy = new DummyScorer();
+                    int groups = 0;
+                    int maxDoc = collapsedDocs.length();
+                    int docId = maxDoc > 0 ? collapsedDocs.nextSetBit(0) : DocIdSetIterator.NO_MORE_DOCS;
+                    int currentContext = -1;
+                    int nextDocBase = 0;
+                    int currentDocBase = 0;
+                    while (docId != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (docId >= nextDocBase) {
+                            while (docId >= nextDocBase) {
+                                currentContext++;
+                                nextDocBase = getNextDocBase(currentContext);
+                            }
                             currentDocBase = contexts[currentContext].docBase;
-                            nextDocBase = getNextDocBase(currentContext);
                             leafDelegate = delegate.getLeafCollector(contexts[currentContext]);
                         }
                         int contextDoc = docId - currentDocBase;
                         dummy.docId = contextDoc;
-                        dummy.score = scores.get(valuesDocId.key);
+                        if (headScores != null) {
+                            dummy.score = headScores.containsKey(docId) ? headScores.get(docId) : nullScores.get(docId);
+                        }
                         leafDelegate.setScorer(dummy);
                         leafDelegate.collect(contextDoc);
+                        groups++;
+                        docId = docId + 1 < maxDoc ? collapsedDocs.nextSetBit(docId + 1) : DocIdSetIterator.NO_MORE_DOCS;
                     }
+                    timing.end(hits, groups, CollapseCounters.TOTAL_HITS);
                 }
 
                 private int getNextDocBase(int currentContext) {
                     return currentContext + 1 < contexts.length ? contexts[currentContext + 1].docBase : Integer.MAX_VALUE;
                 }
 
-
-                private Scorer createScorer(int docNumber) {
-                    return new Scorer(new DummyWeight()) {
-                        public float score() throws IOException {
-                            return scorer.score();
-                        }
-
-                        public int docID() {
-                            return docNumber;
-                        }
-
-                        public DocIdSetIterator iterator() {
-                            throw new UnsupportedOperationException();
-                        }
-
-                        @Override
-                        public float getMaxScore(int upTo) {
-                            return Float.POSITIVE_INFINITY;
-                        }
-
-                    };
-                }
-
             };
         } catch (IOException e) {
             log.error(e.getMessage(), e);
@@ -197,7 +217,7 @@ public class CollapsingQueryFilter extends ExtendedQueryBase implements PostFilt
         return field.hashCode();
     }
 
-    private static class DummyScorer extends Scorer {
+    static class DummyScorer extends Scorer {
 
         public float score;
         public int docId;
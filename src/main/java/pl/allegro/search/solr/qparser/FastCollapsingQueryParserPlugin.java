@@ -1,50 +1,294 @@
 package pl.allegro.search.solr.qparser;
 
 
+import com.codahale.metrics.Counter;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocValuesFieldExistsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.FastCollapsingQueryFilter;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.ExportQParserPlugin;
+import org.apache.solr.search.FunctionQParser;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.ReRankQParserPlugin;
 import org.apache.solr.search.SortSpecParsing;
+import org.apache.solr.search.SyntaxError;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-public class FastCollapsingQueryParserPlugin extends QParserPlugin {
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_COUNTERS;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_RESELECT_HEADS;
+
+
+public class FastCollapsingQueryParserPlugin extends QParserPlugin implements SolrMetricProducer {
+
+    public static final String ALTERNATIVE_SORT_PREFIX = "fastCollapse.sort.";
+
+    private SolrMetricsContext solrMetricsContext;
+    private Map<String, Counter> strategyRequests = Collections.emptyMap();
+    private Counter cursorFallbacks;
+    private Counter exportFallbacks;
 
     @Override
     public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-        String field = localParams.get("field");
-        FieldType fieldType = req.getSchema().getFieldType(field);
+        String[] fields = parseFieldList(localParams.get("field"));
+        String keyFunction = localParams.get("key");
+        boolean isMemoizedKeys = localParams.getBool("memoizeKeys", false);
+        if (fields.length == 0 && keyFunction == null) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Collapsing field or key is required");
+        }
+        String field = fields.length > 0 ? fields[0] : null;
+        FieldType fieldType = field == null ? null : req.getSchema().getFieldType(field);
         boolean isExactCount = localParams.getBool("exactCount", false);
+        boolean isBatched = localParams.getBool("batch", false);
+        boolean isLevelCounts = localParams.getBool("levelCounts", false);
+        int groupLimit = Math.max(1, localParams.getInt("limit", 1));
+        String[] statsFields = parseFieldList(localParams.get("stats"));
+        boolean isGroupFacets = localParams.getBool("groupFacets", false);
+        boolean isExpand = params.getBool(FastExpandComponent.FAST_EXPAND, false);
+        boolean isReselect = localParams.getBool("reselect", false);
+        String maxField = localParams.get("max");
+        String minField = localParams.get("min");
+        NullPolicy nullPolicy = NullPolicy.of(localParams.get("nullPolicy"));
+        Map<String, Sort> alternativeSorts = parseAlternativeSorts(params, req);
         return new QParser(qstr, localParams, params, req) {
+            // why createFilter() chose the filter, shown in the debug section of the response
+            private String reason;
+
             @Override
-            public Query parse() {
+            public Query parse() throws SyntaxError {
+                Query filter = createFilter();
+                String strategy = strategyOf(filter);
+                req.getContext().put(COLLAPSING_COUNTERS, new CollapseCounters(strategy, reason));
+                count(strategyRequests.get(strategy));
+                return filter;
+            }
+
+            private Query createFilter() throws SyntaxError {
                 //if null sort to , Sort.INDEXORDER
                 Sort sort = SortSpecParsing.parseSortSpec(params.get(CommonParams.SORT), req).getSort();
                 int rows = params.getInt("rows", 10);
                 int start = params.getInt("start", 0);
+                int queueSize = rows + start;
+                QParserPlugin rankQueryPlugin = getRankQueryPlugin(params, req);
+                boolean isExport = rankQueryPlugin instanceof ExportQParserPlugin;
+                boolean isReRank = rankQueryPlugin != null && !isExport && !(rankQueryPlugin instanceof FastCollapsingRankQParserPlugin);
+                if (isReRank) {
+                    // heads are chosen by the first pass score and all of them have to reach the rerank query
+                    sort = sort == null ? Sort.RELEVANCE : sort;
+                    queueSize = Math.max(queueSize, getReRankDocs(params));
+                    if (isReselect) {
+                        // every group takes up to limit slots of the queue
+                        queueSize *= groupLimit;
+                        req.getContext().put(COLLAPSING_RESELECT_HEADS, groupLimit);
+                    }
+                }
 
+                if (keyFunction != null) {
+                    if (field != null || maxField != null || minField != null || isExport || isNoSortingQuery(sort, rows) || isCursorQuery(params)) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "Collapsing by a function key requires a sort and rows, without field, min, max, cursor or export");
+                    }
+                    ValueSource keySource = new FunctionQParser(keyFunction, null, params, req).parseValueSource();
+                    reason = "function key with sort and rows";
+                    return new FastCollapsingQueryFilter(
+                            keySource,
+                            isMemoizedKeys,
+                            sort,
+                            queueSize,
+                            isExactCount,
+                            isBatched,
+                            groupLimit,
+                            statsFields,
+                            isGroupFacets,
+                            nullPolicy,
+                            alternativeSorts,
+                            req.getContext());
+                }
+                if (fields.length > 1) {
+                    if (groupLimit > 1 || statsFields.length > 0 || isGroupFacets || isExactCount || isBatched
+                            || localParams.get("nullPolicy") != null || maxField != null || minField != null
+                            || !alternativeSorts.isEmpty()) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "Collapsing by more than one field does not support limit, stats, groupFacets, exactCount, batch, "
+                                        + "nullPolicy, min, max or fastCollapse.sort");
+                    }
+                    reason = "more than one field";
+                    // cursors and export need all heads, the delegate filters or streams them
+                    int headsToKeep = isExport || isCursorQuery(params) ? -1 : queueSize;
+                    return createMultiLevelFilter(fields, sort, headsToKeep, isLevelCounts, req);
+                }
+                if (maxField != null || minField != null) {
+                    if (groupLimit > 1 || statsFields.length > 0 || isGroupFacets || isExactCount
+                            || localParams.get("nullPolicy") != null || !alternativeSorts.isEmpty()) {
+                        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                "Collapsing by min or max does not support limit, stats, groupFacets, exactCount, nullPolicy or fastCollapse.sort");
+                    }
+                    String selectorField = maxField != null ? maxField : minField;
+                    reason = maxField != null ? "max selector" : "min selector";
+                    return new MinMaxCollapsingQueryFilter(field, fieldType,
+                            selectorField, req.getSchema().getFieldType(selectorField), maxField != null, req.getContext());
+                }
+                if ((isExport || isCursorQuery(params) || isNoSortingQuery(sort, rows)) && localParams.get("nullPolicy") != null) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                            "Collapsing without sort or rows, with a cursor or export does not support nullPolicy");
+                }
+                if ((isExport || isCursorQuery(params)) && (groupLimit > 1 || statsFields.length > 0 || isGroupFacets)) {
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                            "Collapsing with a cursor or export does not support limit, stats or groupFacets");
+                }
+                if (isExport) {
+                    // all heads are streamed, so they are computed once without a bounded queue
+                    reason = "export of all heads";
+                    count(exportFallbacks);
+                    return new CollapsingQueryFilter(field, fieldType, sort, req.getContext());
+                }
                 if (isNoSortingQuery(sort, rows)) {
-                    return new SumCollapsingQueryFilter(field, fieldType);
+                    reason = sort == null ? "no sort" : "no rows";
+                    return new SumCollapsingQueryFilter(field, fieldType, req.getContext());
                 }
                 if (!isCursorQuery(params)) {
+                            reason = "sort and rows";
+                            // documents without a value never reach the filter when the main query requires a value
+                            boolean isValueRequired = nullPolicy == NullPolicy.IGNORE && requireValue(field);
                             return new FastCollapsingQueryFilter(
                                     field, fieldType,
                                     sort,
-                                    rows + start,
+                                    queueSize,
                                     isExactCount,
+                                    isBatched,
+                                    groupLimit,
+                                    statsFields,
+                                    isGroupFacets,
+                                    isExpand || (isReRank && isReselect),
+                                    isValueRequired ? NullPolicy.EXPAND : nullPolicy,
+                                    alternativeSorts,
                                     req.getContext());
                 }
-                return new CollapsingQueryFilter(field, fieldType, sort);
+                reason = "cursor";
+                count(cursorFallbacks);
+                return new CollapsingQueryFilter(field, fieldType, sort, req.getContext());
+            }
+
+            /**
+             * Adds a clause requiring a value of the field to the main query of the search request of this filter,
+             * so that documents without a value are skipped by the doc values iterator of the field instead of
+             * being collected and dropped. Returns false if there is no main query to add it to,
+             * e.g. when the filter is not parsed as a filter query of a search request.
+             */
+            private boolean requireValue(String field) {
+                SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+                ResponseBuilder rb = requestInfo == null ? null : requestInfo.getResponseBuilder();
+                if (!isFilter() || rb == null || rb.req != req || rb.getQuery() == null) {
+                    return false;
+                }
+                rb.setQuery(new BooleanQuery.Builder()
+                        .add(rb.getQuery(), BooleanClause.Occur.MUST)
+                        .add(new DocValuesFieldExistsQuery(field), BooleanClause.Occur.FILTER)
+                        .build());
+                return true;
             }
         };
     }
 
+    /**
+     * Registers the number of requests of every strategy and of fallbacks from the fast filter to the full one,
+     * timers and histograms of the filters are registered by {@link org.apache.solr.search.FastCollapsingNumFoundSearchComponent}.
+     */
+    @Override
+    public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+        solrMetricsContext = parentContext.getChildContext(this);
+        String category = getCategory().toString();
+        Map<String, Counter> requests = new HashMap<>();
+        for (String strategy : CollapseCounters.STRATEGIES) {
+            requests.put(strategy, solrMetricsContext.counter(this, strategy, category, scope, "requests"));
+        }
+        strategyRequests = requests;
+        cursorFallbacks = solrMetricsContext.counter(this, "cursor", category, scope, "fallbacks");
+        exportFallbacks = solrMetricsContext.counter(this, "export", category, scope, "fallbacks");
+    }
+
+    @Override
+    public SolrMetricsContext getSolrMetricsContext() {
+        return solrMetricsContext;
+    }
+
+    private void count(Counter counter) {
+        if (counter != null) {
+            counter.inc();
+        }
+    }
+
+    private String strategyOf(Query filter) {
+        if (filter instanceof FastCollapsingQueryFilter) {
+            return CollapseCounters.FAST;
+        }
+        if (filter instanceof SumCollapsingQueryFilter) {
+            return CollapseCounters.SUM;
+        }
+        if (filter instanceof MultiLevelCollapsingQueryFilter) {
+            return CollapseCounters.MULTI_LEVEL;
+        }
+        if (filter instanceof MinMaxCollapsingQueryFilter) {
+            return CollapseCounters.MIN_MAX;
+        }
+        return CollapseCounters.FULL;
+    }
+
+    private Query createMultiLevelFilter(String[] fields, Sort sort, int queueSize, boolean isLevelCounts, SolrQueryRequest req) {
+        FieldType[] fieldTypes = new FieldType[fields.length];
+        for (int level = 0; level < fields.length; level++) {
+            fieldTypes[level] = req.getSchema().getFieldType(fields[level]);
+        }
+        return new MultiLevelCollapsingQueryFilter(fields, fieldTypes, sort, queueSize, isLevelCounts, req.getContext());
+    }
+
+    private String[] parseFieldList(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return new String[0];
+        }
+        String[] parsed = fields.split(",");
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = parsed[i].trim();
+        }
+        return parsed;
+    }
+
+    /**
+     * Sorts of the request parameters <code>fastCollapse.sort.NAME</code>, in order of the parameters.
+     * A sort which does not name any field (<code>score desc</code>) is the relevance sort.
+     */
+    private Map<String, Sort> parseAlternativeSorts(SolrParams params, SolrQueryRequest req) {
+        Map<String, Sort> alternativeSorts = new LinkedHashMap<>();
+        Iterator<String> names = params.getParameterNamesIterator();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (name.startsWith(ALTERNATIVE_SORT_PREFIX) && name.length() > ALTERNATIVE_SORT_PREFIX.length()) {
+                Sort sort = SortSpecParsing.parseSortSpec(params.get(name), req).getSort();
+                alternativeSorts.put(name.substring(ALTERNATIVE_SORT_PREFIX.length()), sort == null ? Sort.RELEVANCE : sort);
+            }
+        }
+        return alternativeSorts;
+    }
+
     private boolean isNoSortingQuery(Sort sort, int rows) {
         return sort == null || rows == 0;
     }
@@ -54,6 +298,26 @@ public class FastCollapsingQueryParserPlugin extends QParserPlugin {
                 !params.get("nextCursorMark", "").isEmpty();
     }
 
+    /**
+     * Returns the plugin of the rank query (rq parameter) of the request or null if there is none.
+     */
+    private QParserPlugin getRankQueryPlugin(SolrParams params, SolrQueryRequest req) throws SyntaxError {
+        String rankQuery = params.get(CommonParams.RQ);
+        if (rankQuery == null || rankQuery.trim().isEmpty()) {
+            return null;
+        }
+        SolrParams rankParams = QueryParsing.getLocalParams(rankQuery, params);
+        String type = rankParams == null ? null : rankParams.get(QueryParsing.TYPE);
+        return type == null ? null : req.getCore().getQueryPlugin(type);
+    }
+
+    private int getReRankDocs(SolrParams params) throws SyntaxError {
+        SolrParams rankParams = QueryParsing.getLocalParams(params.get(CommonParams.RQ), params);
+        return rankParams == null ?
+                ReRankQParserPlugin.RERANK_DOCS_DEFAULT :
+                rankParams.getInt(ReRankQParserPlugin.RERANK_DOCS, ReRankQParserPlugin.RERANK_DOCS_DEFAULT);
+    }
+
     @Override
     public void init(NamedList args) {
         super.init(args);
@@ -0,0 +1,112 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.handler.component.MergeStrategy;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryCommand;
+import org.apache.solr.search.RankQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_HEAP_COLLECTOR;
+
+/**
+ * Rank query (<code>rq={!fastCollapseRank}</code>) that lets the fast collapsing filter hand over its priority queue
+ * as the result of the request, see {@link HeapTopDocsCollector}.
+ */
+public class FastCollapsingRankQParserPlugin extends QParserPlugin {
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+        return new QParser(qstr, localParams, params, req) {
+            @Override
+            public Query parse() {
+                return new FastCollapsingRankQuery(null, req.getContext());
+            }
+        };
+    }
+
+    private static class FastCollapsingRankQuery extends RankQuery {
+
+        private final Query mainQuery;
+        private final Map<Object, Object> reqContext;
+
+        FastCollapsingRankQuery(Query mainQuery, Map<Object, Object> reqContext) {
+            this.mainQuery = mainQuery;
+            this.reqContext = reqContext;
+        }
+
+        /**
+         * The collector is also published in the request context, since Solr can wrap it before it becomes
+         * the delegate of the filter, e.g. with a max score collector for <code>fl=score</code>.
+         */
+        @Override
+        public TopDocsCollector getTopDocsCollector(int len, QueryCommand cmd, IndexSearcher searcher) throws IOException {
+            Sort sort = cmd.getSort() == null ? null : ((SolrIndexSearcher) searcher).weightSort(cmd.getSort());
+            int size = Math.max(1, len);
+            TopDocsCollector<?> fallback = sort == null ?
+                    TopScoreDocCollector.create(size, Integer.MAX_VALUE) :
+                    TopFieldCollector.create(sort, size, Integer.MAX_VALUE);
+            HeapTopDocsCollector collector = new HeapTopDocsCollector(fallback);
+            reqContext.put(COLLAPSING_HEAP_COLLECTOR, collector);
+            return collector;
+        }
+
+        @Override
+        public MergeStrategy getMergeStrategy() {
+            return null;
+        }
+
+        @Override
+        public RankQuery wrap(Query mainQuery) {
+            return new FastCollapsingRankQuery(mainQuery, reqContext);
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+            return mainQuery.createWeight(searcher, scoreMode, boost);
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader) throws IOException {
+            Query rewritten = mainQuery.rewrite(reader);
+            return rewritten != mainQuery ? wrap(rewritten) : super.rewrite(reader);
+        }
+
+        @Override
+        public void visit(QueryVisitor visitor) {
+            mainQuery.visit(visitor.getSubVisitor(BooleanClause.Occur.MUST, this));
+        }
+
+        @Override
+        public String toString(String field) {
+            return "{!fastCollapseRank mainQuery='" + mainQuery.toString(field) + "'}";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FastCollapsingRankQuery && Objects.equals(mainQuery, ((FastCollapsingRankQuery) o).mainQuery);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * FastCollapsingRankQuery.class.hashCode() + Objects.hashCode(mainQuery);
+        }
+    }
+}
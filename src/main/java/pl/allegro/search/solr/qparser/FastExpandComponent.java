@@ -0,0 +1,237 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FastCollapsingQueryFilter;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortSpecParsing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_HEADS;
+import static pl.allegro.search.solr.qparser.SortedDocValuesHash.ORDINAL_OFFSET;
+
+/**
+ * Returns other members of the groups returned by {@link FastCollapsingQueryFilter}, like Solr's expand component.
+ * <p>
+ * Instead of scanning all matches again, the keys of the returned heads published by the filter are turned
+ * into a set query on the collapsing field, so only documents of the returned groups are visited
+ * and the cost depends on the number of rows and the size of their groups, not on the whole result set.
+ */
+public class FastExpandComponent extends SearchComponent {
+
+    public static final String FAST_EXPAND = "fastExpand";
+    public static final String FAST_EXPAND_ROWS = "fastExpand.rows";
+    public static final String FAST_EXPAND_SORT = "fastExpand.sort";
+    public static final String EXPANDED = "expanded";
+
+    private static final int DEFAULT_ROWS = 5;
+
+    @Override
+    public void prepare(ResponseBuilder rb) {
+
+    }
+
+    @Override
+    public void process(ResponseBuilder rb) throws IOException {
+        SolrParams params = rb.req.getParams();
+        CollapsedHeads heads = (CollapsedHeads) rb.req.getContext().get(COLLAPSING_HEADS);
+        if (!params.getBool(FAST_EXPAND, false) || heads == null || rb.getResults() == null) {
+            return;
+        }
+        SolrIndexSearcher searcher = rb.req.getSearcher();
+        SchemaField schemaField = searcher.getSchema().getField(heads.getField());
+        int rows = params.getInt(FAST_EXPAND_ROWS, DEFAULT_ROWS);
+
+        // keys of the returned page in order of the heads, a group can have several heads with a group limit
+        LongArrayList keys = new LongArrayList();
+        LongObjectHashMap<String> keyToValue = new LongObjectHashMap<>();
+        SortedDocValues topLevelValues = heads.getKeyType() == SortedDocValuesHash.KeyType.ORDINAL ?
+                searcher.getSlowAtomicReader().getSortedDocValues(heads.getField()) : null;
+        DocIterator iterator = rb.getResults().docList.iterator();
+        while (iterator.hasNext()) {
+            int doc = iterator.nextDoc();
+            if (!heads.isHead(doc)) {
+                continue;
+            }
+            long key = heads.keyOf(doc);
+            if (!keyToValue.containsKey(key)) {
+                keys.add(key);
+                keyToValue.put(key, toExternalValue(key, heads.getKeyType(), schemaField, topLevelValues));
+            }
+        }
+
+        SimpleOrderedMap<DocSlice> expanded = new SimpleOrderedMap<>();
+        if (keys.isEmpty() || rows <= 0) {
+            rb.rsp.add(EXPANDED, expanded);
+            return;
+        }
+
+        List<String> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(keyToValue.get(keys.get(i)));
+        }
+        Query query = buildQuery(rb, schemaField, values);
+        Sort sort = getSort(rb, searcher);
+        OrdinalMap ordinalMap = SortedDocValuesHash.getOrdinalMap(searcher, heads.getField(), heads.getKeyType());
+        GroupMembersCollector collector = new GroupMembersCollector(heads, keys, sort, rows, ordinalMap);
+        searcher.search(query, collector);
+
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i);
+            TopDocs topDocs = collector.collectors.get(key).topDocs();
+            if (topDocs.scoreDocs.length > 0) {
+                expanded.add(keyToValue.get(key), toDocSlice(topDocs));
+            }
+        }
+        rb.rsp.add(EXPANDED, expanded);
+    }
+
+    private String toExternalValue(long key, SortedDocValuesHash.KeyType keyType, SchemaField schemaField, SortedDocValues topLevelValues) throws IOException {
+        if (keyType == SortedDocValuesHash.KeyType.NUMERIC) {
+            return Long.toString(key);
+        }
+        return schemaField.getType()
+                .indexedToReadable(topLevelValues.lookupOrd((int) (key - ORDINAL_OFFSET)), new CharsRefBuilder())
+                .toString();
+    }
+
+    /**
+     * The main query and the filters of the request (except the collapsing ones) restricted to the returned groups.
+     */
+    private Query buildQuery(ResponseBuilder rb, SchemaField schemaField, List<String> values) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(rb.getQuery(), BooleanClause.Occur.MUST);
+        builder.add(schemaField.getType().getSetQuery(null, schemaField, values), BooleanClause.Occur.FILTER);
+        if (rb.getFilters() != null) {
+            for (Query filter : rb.getFilters()) {
+                if (!isCollapsingFilter(filter)) {
+                    builder.add(filter, BooleanClause.Occur.FILTER);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private boolean isCollapsingFilter(Query filter) {
+        return filter instanceof FastCollapsingQueryFilter
+                || filter instanceof CollapsingQueryFilter
+                || filter instanceof SumCollapsingQueryFilter
+                || filter instanceof MultiLevelCollapsingQueryFilter
+                || filter instanceof MinMaxCollapsingQueryFilter;
+    }
+
+    private Sort getSort(ResponseBuilder rb, SolrIndexSearcher searcher) throws IOException {
+        String sortParam = rb.req.getParams().get(FAST_EXPAND_SORT);
+        Sort sort = sortParam != null ?
+                SortSpecParsing.parseSortSpec(sortParam, rb.req).getSort() :
+                rb.getSortSpec().getSort();
+        return sort == null ? null : searcher.weightSort(sort);
+    }
+
+    private DocSlice toDocSlice(TopDocs topDocs) {
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        int[] docs = new int[scoreDocs.length];
+        float[] scores = new float[scoreDocs.length];
+        float maxScore = Float.NaN;
+        for (int i = 0; i < scoreDocs.length; i++) {
+            docs[i] = scoreDocs[i].doc;
+            scores[i] = scoreDocs[i].score;
+            if (Float.isNaN(maxScore) || scores[i] > maxScore) {
+                maxScore = scores[i];
+            }
+        }
+        return new DocSlice(0, docs.length, docs, scores, topDocs.totalHits.value, maxScore, TotalHits.Relation.EQUAL_TO);
+    }
+
+    @Override
+    public String getDescription() {
+        return "A component that returns other members of the groups returned by the fast collapsing filter.";
+    }
+
+    /**
+     * Routes every document to the top docs collector of its group, heads returned in the response are skipped.
+     */
+    private static class GroupMembersCollector implements Collector {
+
+        private final CollapsedHeads heads;
+        private final OrdinalMap ordinalMap;
+        private final ScoreMode scoreMode;
+        private final LongObjectHashMap<TopDocsCollector<?>> collectors;
+
+        GroupMembersCollector(CollapsedHeads heads, LongArrayList keys, Sort sort, int rows, OrdinalMap ordinalMap) {
+            this.heads = heads;
+            this.ordinalMap = ordinalMap;
+            this.scoreMode = sort == null || sort.needsScores() ? ScoreMode.COMPLETE : ScoreMode.COMPLETE_NO_SCORES;
+            this.collectors = new LongObjectHashMap<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                collectors.put(keys.get(i), sort == null ?
+                        TopScoreDocCollector.create(rows, Integer.MAX_VALUE) :
+                        TopFieldCollector.create(sort, rows, Integer.MAX_VALUE));
+            }
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            SortedDocValuesHash sortedDocValuesHash = SortedDocValuesHash.create(context, heads.getField(), heads.getKeyType(), ordinalMap);
+            LongObjectHashMap<LeafCollector> leafCollectors = new LongObjectHashMap<>(collectors.size());
+            for (LongObjectCursor<TopDocsCollector<?>> cursor : collectors) {
+                leafCollectors.put(cursor.key, cursor.value.getLeafCollector(context));
+            }
+            int docBase = context.docBase;
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorable scorer) throws IOException {
+                    for (ObjectCursor<LeafCollector> cursor : leafCollectors.values()) {
+                        cursor.value.setScorer(scorer);
+                    }
+                }
+
+                @Override
+                public void collect(int docNumber) throws IOException {
+                    if (!sortedDocValuesHash.advanceExact(docNumber)) {
+                        return;
+                    }
+                    LeafCollector leafCollector = leafCollectors.get(sortedDocValuesHash.key());
+                    if (leafCollector != null && !heads.isHead(docNumber + docBase)) {
+                        leafCollector.collect(docNumber);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return scoreMode;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collapse keys computed by a function query (<code>key=floor(div(price,10))</code>) instead of read from a field.
+ * The key of a document is the bits of its double value, so all functions returning the same number make one group.
+ * <p>
+ * With memoization the keys of a segment are computed once, for all its documents, and kept in a column
+ * shared by the following queries with the same function. Columns are cached by the core key of the segment
+ * and its doc values generation, so updates of doc values in place are seen, and dropped when the segment is closed.
+ * Deletes do not change document numbers so they do not invalidate columns. A column takes 8 bytes per document
+ * of the segment, the least recently used columns are dropped when all of them take more than
+ * {@link #MAX_COLUMN_BYTES}, since functions come from requests.
+ * <p>
+ * With {@link KeySidecarListener} registered in the core, columns are also written to files in the data directory
+ * and memory mapped by the following searchers, so a restarted node does not compute them again, see {@link KeySidecars}.
+ */
+public class FunctionKeys {
+
+    static final long MAX_COLUMN_BYTES = 256L * 1024 * 1024;
+
+    // access ordered, guarded by itself
+    private static final LinkedHashMap<ColumnKey, KeyColumn> COLUMNS = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Set<IndexReader.CacheKey> CLOSE_LISTENERS = ConcurrentHashMap.newKeySet();
+    private static long columnBytes;
+
+    private final ValueSource valueSource;
+    private final Map<Object, Object> context;
+    private final boolean isMemoized;
+    private final KeySidecars sidecars;
+
+    public FunctionKeys(ValueSource valueSource, IndexSearcher searcher, boolean isMemoized) throws IOException {
+        this.valueSource = valueSource;
+        this.context = ValueSource.newContext(searcher);
+        this.isMemoized = isMemoized;
+        this.sidecars = isMemoized && searcher instanceof SolrIndexSearcher ? KeySidecars.of(((SolrIndexSearcher) searcher).getCore()) : null;
+        valueSource.createWeight(context, searcher);
+    }
+
+    public SortedDocValuesHash create(LeafReaderContext leaf) throws IOException {
+        IndexReader.CacheHelper cacheHelper = isMemoized ? cacheHelperOf(leaf) : null;
+        if (cacheHelper == null) {
+            return new FunctionHash(valueSource.getValues(context, leaf));
+        }
+        if (CLOSE_LISTENERS.add(cacheHelper.getKey())) {
+            cacheHelper.addClosedListener(FunctionKeys::removeColumns);
+        }
+        ColumnKey key = new ColumnKey(cacheHelper.getKey(), KeySidecars.docValuesGen(leaf), valueSource);
+        KeyColumn column;
+        synchronized (COLUMNS) {
+            column = COLUMNS.get(key);
+        }
+        if (column == null) {
+            // computed outside of the lock, concurrent queries may compute the same column once each
+            column = loadColumn(leaf);
+            putColumn(key, column);
+        }
+        return new ColumnHash(column);
+    }
+
+    /**
+     * Values of a segment read directly are cached by its core, which is shared by all generations of its doc values;
+     * values of other leaves by the leaf itself.
+     */
+    static IndexReader.CacheHelper cacheHelperOf(LeafReaderContext leaf) {
+        return KeySidecars.docValuesGen(leaf) == KeySidecars.UNKNOWN_GENERATION ?
+                leaf.reader().getReaderCacheHelper() :
+                leaf.reader().getCoreCacheHelper();
+    }
+
+    private KeyColumn loadColumn(LeafReaderContext leaf) throws IOException {
+        KeyColumn column = sidecars == null ? null : sidecars.read(leaf, valueSource.description());
+        if (column == null) {
+            column = computeColumn(leaf);
+            if (sidecars != null) {
+                sidecars.write(leaf, valueSource.description(), column);
+            }
+        }
+        return column;
+    }
+
+    private static void putColumn(ColumnKey key, KeyColumn column) {
+        synchronized (COLUMNS) {
+            KeyColumn previous = COLUMNS.put(key, column);
+            columnBytes += column.bytes() - (previous == null ? 0 : previous.bytes());
+            Iterator<KeyColumn> leastRecentlyUsed = COLUMNS.values().iterator();
+            while (columnBytes > MAX_COLUMN_BYTES && COLUMNS.size() > 1) {
+                columnBytes -= leastRecentlyUsed.next().bytes();
+                leastRecentlyUsed.remove();
+            }
+        }
+    }
+
+    private static void removeColumns(IndexReader.CacheKey readerKey) {
+        CLOSE_LISTENERS.remove(readerKey);
+        synchronized (COLUMNS) {
+            Iterator<Map.Entry<ColumnKey, KeyColumn>> entries = COLUMNS.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<ColumnKey, KeyColumn> entry = entries.next();
+                if (entry.getKey().readerKey == readerKey) {
+                    columnBytes -= entry.getValue().bytes();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private KeyColumn computeColumn(LeafReaderContext leaf) throws IOException {
+        int maxDoc = leaf.reader().maxDoc();
+        FunctionValues values = valueSource.getValues(context, leaf);
+        long[] keys = new long[maxDoc];
+        FixedBitSet hasKey = new FixedBitSet(maxDoc);
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (values.exists(doc)) {
+                keys[doc] = toKey(values.doubleVal(doc));
+                hasKey.set(doc);
+            }
+        }
+        return new KeyColumn(maxDoc, LongBuffer.wrap(keys), LongBuffer.wrap(hasKey.getBits()));
+    }
+
+    /**
+     * Positive and negative zero make a single group.
+     */
+    static long toKey(double value) {
+        return Double.doubleToLongBits(value == 0d ? 0d : value);
+    }
+
+    /**
+     * Number of segments with memoized keys, for tests.
+     */
+    static int memoizedSegments() {
+        synchronized (COLUMNS) {
+            return (int) COLUMNS.keySet().stream().map(key -> key.readerKey).distinct().count();
+        }
+    }
+
+    /**
+     * Number of cached columns mapped from files, for tests.
+     */
+    static int mappedColumns() {
+        synchronized (COLUMNS) {
+            return (int) COLUMNS.values().stream().filter(column -> column.keys.isDirect()).count();
+        }
+    }
+
+    /**
+     * Drops all cached columns, so that the following queries read them from files or compute them, for tests.
+     */
+    static void clearColumns() {
+        synchronized (COLUMNS) {
+            COLUMNS.clear();
+            columnBytes = 0;
+        }
+    }
+
+    private static final class ColumnKey {
+
+        private final IndexReader.CacheKey readerKey;
+        private final long docValuesGen;
+        private final ValueSource valueSource;
+
+        ColumnKey(IndexReader.CacheKey readerKey, long docValuesGen, ValueSource valueSource) {
+            this.readerKey = readerKey;
+            this.docValuesGen = docValuesGen;
+            this.valueSource = valueSource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ColumnKey)) {
+                return false;
+            }
+            ColumnKey that = (ColumnKey) o;
+            return readerKey == that.readerKey && docValuesGen == that.docValuesGen && valueSource.equals(that.valueSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(readerKey, docValuesGen, valueSource);
+        }
+    }
+
+    /**
+     * Keys of all documents of a segment and the bits of documents with a key, on the heap or memory mapped.
+     */
+    static final class KeyColumn {
+
+        final int maxDoc;
+        final LongBuffer keys;
+        final LongBuffer hasKeyBits;
+
+        KeyColumn(int maxDoc, LongBuffer keys, LongBuffer hasKeyBits) {
+            this.maxDoc = maxDoc;
+            this.keys = keys;
+            this.hasKeyBits = hasKeyBits;
+        }
+
+        boolean hasKey(int docNumber) {
+            return (hasKeyBits.get(docNumber >> 6) & (1L << docNumber)) != 0;
+        }
+
+        long bytes() {
+            return ((long) maxDoc + FixedBitSet.bits2words(maxDoc)) * Long.BYTES;
+        }
+    }
+
+    private static final class FunctionHash extends SortedDocValuesHash {
+
+        private final FunctionValues values;
+        private int docNumber;
+
+        FunctionHash(FunctionValues values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean advanceExact(int docNumber) throws IOException {
+            this.docNumber = docNumber;
+            return values.exists(docNumber);
+        }
+
+        @Override
+        public long key() throws IOException {
+            return toKey(values.doubleVal(docNumber));
+        }
+    }
+
+    private static final class ColumnHash extends SortedDocValuesHash {
+
+        private final KeyColumn column;
+        private int docNumber;
+
+        ColumnHash(KeyColumn column) {
+            this.column = column;
+        }
+
+        @Override
+        public boolean advanceExact(int docNumber) {
+            this.docNumber = docNumber;
+            return column.hasKey(docNumber);
+        }
+
+        @Override
+        public long key() {
+            return column.keys.get(docNumber);
+        }
+    }
+}
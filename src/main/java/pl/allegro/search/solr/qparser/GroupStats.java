@@ -0,0 +1,138 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.LongIntHashMap;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.DoubleValueFieldType;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.FloatValueFieldType;
+
+import java.io.IOException;
+
+/**
+ * Per group accumulators (count and min, max, sum of numeric doc values fields) maintained while collapsing.
+ * <p>
+ * Values are kept in flat primitive arrays indexed by the group index, so collecting a document
+ * does not allocate unless the arrays have to grow.
+ */
+public class GroupStats {
+
+    private static final int INIT_GROUPS = 128;
+
+    private final String[] fields;
+    private final boolean[] floatFields;
+    private final boolean[] doubleFields;
+    private final NumericDocValues[] docValues;
+
+    private final LongIntHashMap groupToIndex = new LongIntHashMap(INIT_GROUPS);
+    private final IntIntHashMap headToIndex = new IntIntHashMap();
+    private int[] counts = new int[INIT_GROUPS];
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+
+    public GroupStats(String[] fields, FieldType[] fieldTypes) {
+        this.fields = fields;
+        this.floatFields = new boolean[fields.length];
+        this.doubleFields = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            floatFields[i] = fieldTypes[i] instanceof FloatValueFieldType;
+            doubleFields[i] = fieldTypes[i] instanceof DoubleValueFieldType;
+        }
+        this.docValues = new NumericDocValues[fields.length];
+        this.mins = new double[INIT_GROUPS * fields.length];
+        this.maxs = new double[INIT_GROUPS * fields.length];
+        this.sums = new double[INIT_GROUPS * fields.length];
+    }
+
+    public void setNextReader(LeafReaderContext context) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            docValues[i] = DocValues.getNumeric(context.reader(), fields[i]);
+        }
+    }
+
+    /**
+     * Adds a document of the group with the given hash, documents have to be collected in order within a segment.
+     */
+    public void collect(int docNumber, long hash) throws IOException {
+        int index = groupToIndex.getOrDefault(hash, -1);
+        if (index < 0) {
+            index = groupToIndex.size();
+            groupToIndex.put(hash, index);
+            grow(index + 1);
+            for (int i = index * fields.length; i < (index + 1) * fields.length; i++) {
+                mins[i] = Double.POSITIVE_INFINITY;
+                maxs[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        counts[index]++;
+        for (int i = 0; i < fields.length; i++) {
+            if (docValues[i].advanceExact(docNumber)) {
+                double value = decode(i, docValues[i].longValue());
+                int position = index * fields.length + i;
+                mins[position] = Math.min(mins[position], value);
+                maxs[position] = Math.max(maxs[position], value);
+                sums[position] += value;
+            }
+        }
+    }
+
+    private double decode(int field, long raw) {
+        if (floatFields[field]) {
+            return Float.intBitsToFloat((int) raw);
+        }
+        if (doubleFields[field]) {
+            return Double.longBitsToDouble(raw);
+        }
+        return raw;
+    }
+
+    private void grow(int groups) {
+        if (counts.length < groups) {
+            counts = ArrayUtil.grow(counts, groups);
+        }
+        if (sums.length < groups * fields.length) {
+            mins = ArrayUtil.grow(mins, groups * fields.length);
+            maxs = ArrayUtil.grow(maxs, mins.length);
+            sums = ArrayUtil.grow(sums, mins.length);
+        }
+    }
+
+    /**
+     * Marks the given global document as the returned head of the group with the given hash.
+     */
+    public void addHead(int globalDoc, long hash) {
+        int index = groupToIndex.getOrDefault(hash, -1);
+        if (index >= 0) {
+            headToIndex.put(globalDoc, index);
+        }
+    }
+
+    /**
+     * Returns the stats of the group of the given head or null if the document is not a head of a group.
+     */
+    public NamedList<Object> forHead(int globalDoc) {
+        int index = headToIndex.getOrDefault(globalDoc, -1);
+        if (index < 0) {
+            return null;
+        }
+        SimpleOrderedMap<Object> stats = new SimpleOrderedMap<>();
+        stats.add("count", counts[index]);
+        for (int i = 0; i < fields.length; i++) {
+            int position = index * fields.length + i;
+            SimpleOrderedMap<Object> fieldStats = new SimpleOrderedMap<>();
+            if (mins[position] <= maxs[position]) {
+                fieldStats.add("min", mins[position]);
+                fieldStats.add("max", maxs[position]);
+            }
+            fieldStats.add("sum", sums[position]);
+            stats.add(fields[i], fieldStats);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,90 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TotalHits;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Top docs collector of {@link FastCollapsingRankQParserPlugin}. The fast collapsing filter hands over its priority queue,
+ * already in the order of the response, instead of replaying the heads, so they are not compared and sorted a second time.
+ * <p>
+ * If documents are collected the usual way (a filter which does not hand over its queue, or no collapsing filter),
+ * they are passed to the given collector. Once the queue is handed over, documents are ignored, so that collectors
+ * Solr wraps around this one (max score, document set, time limit) can still be given the heads.
+ */
+public class HeapTopDocsCollector extends TopDocsCollector<ScoreDoc> {
+
+    private final TopDocsCollector<?> fallback;
+    private TopDocs heapTopDocs;
+
+    public HeapTopDocsCollector(TopDocsCollector<?> fallback) {
+        super(null);
+        this.fallback = fallback;
+    }
+
+    public void setTopDocs(TopDocs topDocs) {
+        this.heapTopDocs = topDocs;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        if (heapTopDocs != null) {
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorable scorer) {
+                }
+
+                @Override
+                public void collect(int doc) {
+                }
+            };
+        }
+        return fallback.getLeafCollector(context);
+    }
+
+    /**
+     * Returns whether the queue of a collapsing filter was handed over.
+     */
+    public boolean isHandedOver() {
+        return heapTopDocs != null;
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return fallback.scoreMode();
+    }
+
+    @Override
+    public int getTotalHits() {
+        return heapTopDocs != null ? (int) heapTopDocs.totalHits.value : fallback.getTotalHits();
+    }
+
+    @Override
+    public TopDocs topDocs() {
+        return heapTopDocs != null ? heapTopDocs : fallback.topDocs();
+    }
+
+    @Override
+    public TopDocs topDocs(int start) {
+        return topDocs(start, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public TopDocs topDocs(int start, int howMany) {
+        if (heapTopDocs == null) {
+            return fallback.topDocs(start, howMany);
+        }
+        ScoreDoc[] scoreDocs = heapTopDocs.scoreDocs;
+        int from = Math.min(start, scoreDocs.length);
+        int to = (int) Math.min((long) from + howMany, scoreDocs.length);
+        return new TopDocs(heapTopDocs.totalHits, Arrays.copyOfRange(scoreDocs, from, to));
+    }
+}
@@ -0,0 +1,131 @@
+package pl.allegro.search.solr.qparser;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.apache.lucene.search.Sort;
+
+/**
+ * Emits {@link CollapseEvent} and {@link CollapseSegmentEvent}, referenced only by {@link CollapseEvents}
+ * once it knows that the JVM has JFR.
+ */
+class JfrCollapseRecorder implements CollapseRecorder {
+
+    private final CollapseEvent execution = new CollapseEvent();
+    private CollapseSegmentEvent segment;
+    private long segmentStartScanned;
+
+    JfrCollapseRecorder() {
+        execution.begin();
+    }
+
+    static boolean isEnabled() {
+        return EventType.getEventType(CollapseEvent.class).isEnabled()
+                || EventType.getEventType(CollapseSegmentEvent.class).isEnabled();
+    }
+
+    @Override
+    public void beginSegment(int ord, int maxDoc, long scanned) {
+        segment = new CollapseSegmentEvent();
+        if (segment.isEnabled()) {
+            segment.segment = ord;
+            segment.maxDoc = maxDoc;
+            segmentStartScanned = scanned;
+            segment.begin();
+        }
+    }
+
+    @Override
+    public void endSegment(long scanned) {
+        if (segment != null && segment.isEnabled()) {
+            segment.end();
+            if (segment.shouldCommit()) {
+                segment.scanned = scanned - segmentStartScanned;
+                segment.commit();
+            }
+        }
+        segment = null;
+    }
+
+    @Override
+    public void end(String field, Sort sort, long scanned, long groups, int queueSize, boolean isExactCount,
+                    long collectNanos, long finishNanos) {
+        execution.end();
+        if (execution.shouldCommit()) {
+            execution.strategy = CollapseCounters.FAST;
+            execution.field = field;
+            execution.sort = sort.toString();
+            execution.scanned = scanned;
+            execution.groups = groups;
+            execution.queueSize = queueSize;
+            execution.exactCount = isExactCount;
+            execution.collectTime = collectNanos;
+            execution.finishTime = finishNanos;
+            execution.commit();
+        }
+    }
+
+    @Name("pl.allegro.search.solr.qparser.Collapse")
+    @Label("Collapse")
+    @Category({"Solr", "Collapse"})
+    @Description("Execution of a collapsing filter, from the creation of its collector to the end of finish()")
+    @Enabled(false)
+    @StackTrace(false)
+    static class CollapseEvent extends Event {
+
+        @Label("Strategy")
+        String strategy;
+
+        @Label("Field")
+        String field;
+
+        @Label("Sort")
+        String sort;
+
+        @Label("Scanned Documents")
+        long scanned;
+
+        @Label("Groups")
+        @Description("Distinct groups, -1 when the filter does not count them")
+        long groups;
+
+        @Label("Queue Size")
+        int queueSize;
+
+        @Label("Exact Count")
+        boolean exactCount;
+
+        @Label("Collect Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long collectTime;
+
+        @Label("Finish Time")
+        @Description("Time of replaying the queue to the response collector")
+        @Timespan(Timespan.NANOSECONDS)
+        long finishTime;
+    }
+
+    @Name("pl.allegro.search.solr.qparser.CollapseSegment")
+    @Label("Collapse Segment")
+    @Category({"Solr", "Collapse"})
+    @Description("Collecting one segment by a collapsing filter, including matching by the main query and other filters")
+    @Enabled(false)
+    @StackTrace(false)
+    static class CollapseSegmentEvent extends Event {
+
+        @Label("Segment")
+        int segment;
+
+        @Label("Max Doc")
+        int maxDoc;
+
+        @Label("Scanned Documents")
+        long scanned;
+    }
+}
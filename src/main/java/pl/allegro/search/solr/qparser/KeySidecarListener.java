@@ -0,0 +1,31 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Enables files of memoized function keys for the core and deletes files of merged segments when a new searcher
+ * is opened, see {@link KeySidecars}:
+ * <pre>
+ * &lt;listener event="newSearcher" class="pl.allegro.search.solr.qparser.KeySidecarListener"/&gt;
+ * &lt;listener event="firstSearcher" class="pl.allegro.search.solr.qparser.KeySidecarListener"/&gt;
+ * </pre>
+ */
+public class KeySidecarListener extends AbstractSolrEventListener {
+
+    public KeySidecarListener(SolrCore core) {
+        super(core);
+        if (KeySidecars.of(core) == null) {
+            KeySidecars.enable(core);
+        }
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+        KeySidecars sidecars = KeySidecars.of(getCore());
+        if (sidecars != null) {
+            sidecars.cleanUp(newSearcher);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files of memoized function keys of segments ({@link FunctionKeys}), in the <code>collapse_keys</code> directory
+ * of the data directory of a core with {@link KeySidecarListener}.
+ * <p>
+ * A file is named by the id of the segment, its doc values generation and a hash of the function, and starts with
+ * a header repeating them with the number of documents, followed by the keys and the bits of documents with a key.
+ * Files are memory mapped read-only and used only when the header matches the segment and the function,
+ * so a file of a segment updated in place or of a colliding function is computed and written again.
+ * Files of segments no longer in the index are deleted when a new searcher is opened.
+ * <p>
+ * Keys of a function are stored only if they depend on the values of the document alone:
+ * functions of the time of the query or of other documents should not be memoized.
+ * <p>
+ * Only function keys are stored. Statistics of {@link CollapseFieldStats} are computed again by the first
+ * <code>/collapseStats</code> request after a restart, and ordinal maps of string fields are built by Solr
+ * for the whole index, so they change with every new segment and cannot be stored per segment.
+ */
+public class KeySidecars {
+
+    private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String DIRECTORY = "collapse_keys";
+    private static final String SUFFIX = ".keys";
+    private static final int MAGIC = 0x434b4559;
+    private static final int VERSION = 1;
+
+    static final long UNKNOWN_GENERATION = -2;
+
+    private static final Map<SolrCore, KeySidecars> CORES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+
+    private KeySidecars(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Enables files of function keys for the core until it is closed.
+     */
+    static void enable(SolrCore core) {
+        CORES.put(core, new KeySidecars(Paths.get(core.getDataDir(), DIRECTORY)));
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+                CORES.remove(core);
+            }
+        });
+    }
+
+    /**
+     * Returns files of function keys of the core or null if they are not enabled.
+     */
+    static KeySidecars of(SolrCore core) {
+        return CORES.get(core);
+    }
+
+    /**
+     * Maps the file of keys of the function in the segment, returns null if there is none or it does not match.
+     */
+    FunctionKeys.KeyColumn read(LeafReaderContext leaf, String description) {
+        SegmentCommitInfo segment = segmentOf(leaf);
+        if (segment == null) {
+            return null;
+        }
+        Path file = directory.resolve(fileName(segment, description));
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int maxDoc = leaf.reader().maxDoc();
+            int keysOffset = readHeader(buffer, segment, description, maxDoc);
+            int bitWords = FixedBitSet.bits2words(maxDoc);
+            if (keysOffset < 0 || buffer.capacity() != keysOffset + ((long) maxDoc + bitWords) * Long.BYTES) {
+                log.warn("Ignoring keys file {} not matching its segment", file);
+                return null;
+            }
+            buffer.position(keysOffset);
+            LongBuffer keys = buffer.slice().asLongBuffer();
+            keys.limit(maxDoc);
+            buffer.position(keysOffset + maxDoc * Long.BYTES);
+            LongBuffer hasKeyBits = buffer.slice().asLongBuffer();
+            return new FunctionKeys.KeyColumn(maxDoc, keys.slice(), hasKeyBits);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read keys file {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes keys of the function in the segment, failures are logged, since the keys are already in memory.
+     */
+    void write(LeafReaderContext leaf, String description, FunctionKeys.KeyColumn column) {
+        SegmentCommitInfo segment = segmentOf(leaf);
+        if (segment == null || (long) column.maxDoc * Long.BYTES * 2 > Integer.MAX_VALUE) {
+            // a file is mapped as a single buffer
+            return;
+        }
+        Path file = directory.resolve(fileName(segment, description));
+        Path temporary = directory.resolve(file.getFileName() + ".tmp" + Thread.currentThread().getId());
+        try {
+            Files.createDirectories(directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                byte[] id = segment.info.getId();
+                byte[] function = description.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(id);
+                out.writeLong(segment.getDocValuesGen());
+                out.writeInt(column.maxDoc);
+                out.writeInt(function.length);
+                out.write(function);
+                for (int padding = out.size(); padding % Long.BYTES != 0; padding++) {
+                    out.write(0);
+                }
+                for (int doc = 0; doc < column.maxDoc; doc++) {
+                    out.writeLong(column.keys.get(doc));
+                }
+                for (int word = 0; word < FixedBitSet.bits2words(column.maxDoc); word++) {
+                    out.writeLong(column.hasKeyBits.get(word));
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Cannot write keys file {}", file, e);
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Deletes files of segments which are not in the searcher.
+     */
+    void cleanUp(SolrIndexSearcher searcher) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Set<String> prefixes = new HashSet<>();
+        for (LeafReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+            SegmentCommitInfo segment = segmentOf(leaf);
+            if (segment != null) {
+                prefixes.add(segmentPrefix(segment));
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int segmentEnd = name.lastIndexOf('_');
+                if (segmentEnd < 0 || !prefixes.contains(name.substring(0, segmentEnd))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot delete stale keys files in {}", directory, e);
+        }
+    }
+
+    private static int readHeader(ByteBuffer buffer, SegmentCommitInfo segment, String description, int maxDoc) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return -1;
+        }
+        byte[] id = new byte[StringHelper.ID_LENGTH];
+        buffer.get(id);
+        if (!Arrays.equals(id, segment.info.getId()) || buffer.getLong() != segment.getDocValuesGen() || buffer.getInt() != maxDoc) {
+            return -1;
+        }
+        byte[] function = new byte[buffer.getInt()];
+        buffer.get(function);
+        if (!description.equals(new String(function, StandardCharsets.UTF_8))) {
+            return -1;
+        }
+        return (buffer.position() + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+    }
+
+    private static String fileName(SegmentCommitInfo segment, String description) {
+        return segmentPrefix(segment) + "_" + UUID.nameUUIDFromBytes(description.getBytes(StandardCharsets.UTF_8)).toString().replace("-", "") + SUFFIX;
+    }
+
+    private static String segmentPrefix(SegmentCommitInfo segment) {
+        return StringHelper.idToString(segment.info.getId()) + "_" + segment.getDocValuesGen();
+    }
+
+    /**
+     * Returns the doc values generation of the segment of the leaf, -1 if its doc values were never updated,
+     * or {@link #UNKNOWN_GENERATION} if the leaf is not a segment.
+     */
+    static long docValuesGen(LeafReaderContext leaf) {
+        LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+        return reader instanceof SegmentReader ? ((SegmentReader) reader).getSegmentInfo().getDocValuesGen() : UNKNOWN_GENERATION;
+    }
+
+    /**
+     * Returns the segment of the leaf or null if it has no id, e.g. it was written by an old Lucene version.
+     */
+    private static SegmentCommitInfo segmentOf(LeafReaderContext leaf) {
+        LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+        if (!(reader instanceof SegmentReader)) {
+            return null;
+        }
+        SegmentCommitInfo segment = ((SegmentReader) reader).getSegmentInfo();
+        return segment.info.getId() == null ? null : segment;
+    }
+}
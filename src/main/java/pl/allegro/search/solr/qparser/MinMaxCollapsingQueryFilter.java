@@ -0,0 +1,213 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.IntFloatHashMap;
+import com.carrotsearch.hppc.LongIntHashMap;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FastCollapsingFilterInitializationException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.schema.DoubleValueFieldType;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.FloatValueFieldType;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+import static pl.allegro.search.solr.qparser.CollapsingQueryFilter.INIT_COLLAPSED_SET_SIZE;
+/**
+ * Chooses the head of every group by the minimum or maximum of a single numeric doc values field,
+ * independently of the sort of the results, which is applied to the heads by the delegate.
+ * <p>
+ * Values are compared as longs: float and double values are converted to their sortable bits,
+ * so the per document path is a single primitive comparison with the head value of the group,
+ * without the comparators of {@link org.apache.lucene.search.SortFieldsCompare}.
+ * Documents without a value of the selector field lose against any document with a value,
+ * on a tie the document collected first stays the head.
+ */
+public class MinMaxCollapsingQueryFilter extends ExtendedQueryBase implements PostFilter {
+
+    private final String field;
+    private final SortedDocValuesHash.KeyType keyType;
+    private final String selectorField;
+    private final boolean isFloat;
+    private final boolean isDouble;
+    private final boolean isMax;
+    private final Map<Object, Object> reqContext;
+
+    public MinMaxCollapsingQueryFilter(String field, FieldType fieldType, String selectorField, FieldType selectorFieldType, boolean isMax,
+                                       Map<Object, Object> reqContext) {
+        this.field = field;
+        this.keyType = SortedDocValuesHash.KeyType.of(fieldType);
+        this.selectorField = selectorField;
+        this.isFloat = selectorFieldType instanceof FloatValueFieldType;
+        this.isDouble = selectorFieldType instanceof DoubleValueFieldType;
+        this.isMax = isMax;
+        this.reqContext = reqContext;
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(final IndexSearcher indexSearcher) {
+        SolrIndexSearcher searcher = (SolrIndexSearcher) indexSearcher;
+        int leafCount = searcher.getTopReaderContext().leaves().size();
+        long missingValue = isMax ? Long.MIN_VALUE : Long.MAX_VALUE;
+        try {
+            OrdinalMap ordinalMap = SortedDocValuesHash.getOrdinalMap(searcher, field, keyType);
+            CollapseTiming timing = CollapseTiming.start(reqContext, leafCount);
+            return new DelegatingCollector() {
+                private SortedDocValuesHash sortedDocValuesHash;
+                private int hits;
+                private NumericDocValues selectorValues;
+                private final LeafReaderContext[] contexts = new LeafReaderContext[leafCount];
+                private final LongIntHashMap groupToHead = new LongIntHashMap(INIT_COLLAPSED_SET_SIZE);
+                private int[] headDocs = new int[INIT_COLLAPSED_SET_SIZE];
+                private long[] headValues = new long[INIT_COLLAPSED_SET_SIZE];
+                private float[] headScores = new float[INIT_COLLAPSED_SET_SIZE];
+                private int heads;
+                // documents without a value of the collapsing field are passed on in finish() with the heads
+                private final FixedBitSet nullDocs = new FixedBitSet(searcher.maxDoc());
+                private final IntFloatHashMap nullScores = new IntFloatHashMap();
+                private boolean needsScores;
+
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    timing.beginSegment(context.ord);
+                    super.doSetNextReader(context);
+                    sortedDocValuesHash = SortedDocValuesHash.create(context, field, keyType, ordinalMap);
+                    selectorValues = DocValues.getNumeric(context.reader(), selectorField);
+                    this.contexts[context.ord] = context;
+                }
+
+                @Override
+                public void setScorer(Scorable scorer) throws IOException {
+                    super.setScorer(scorer);
+                    needsScores = scoreMode().needsScores();
+                }
+
+                @Override
+                public void collect(int docNumber) throws IOException {
+                    hits++;
+                    if (!sortedDocValuesHash.advanceExact(docNumber)) {
+                        int globalDoc = docNumber + docBase;
+                        nullDocs.set(globalDoc);
+                        if (needsScores) {
+                            nullScores.put(globalDoc, scorer.score());
+                        }
+                        return;
+                    }
+                    long collapsedFieldHash = sortedDocValuesHash.key();
+                    long value = readValue(docNumber);
+                    int head = groupToHead.getOrDefault(collapsedFieldHash, -1);
+                    if (head < 0) {
+                        head = heads++;
+                        if (headDocs.length <= head) {
+                            headDocs = ArrayUtil.grow(headDocs, head + 1);
+                            headValues = ArrayUtil.grow(headValues, head + 1);
+                            headScores = ArrayUtil.grow(headScores, head + 1);
+                        }
+                        groupToHead.put(collapsedFieldHash, head);
+                    } else if (isMax ? value <= headValues[head] : value >= headValues[head]) {
+                        return;
+                    }
+                    headDocs[head] = docNumber + docBase;
+                    headValues[head] = value;
+                    if (needsScores) {
+                        headScores[head] = scorer.score();
+                    }
+                }
+
+                private long readValue(int docNumber) throws IOException {
+                    if (!selectorValues.advanceExact(docNumber)) {
+                        return missingValue;
+                    }
+                    long raw = selectorValues.longValue();
+                    if (isFloat) {
+                        return NumericUtils.sortableFloatBits((int) raw);
+                    }
+                    if (isDouble) {
+                        return NumericUtils.sortableDoubleBits(raw);
+                    }
+                    return raw;
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    timing.beginFinish();
+                    FixedBitSet collapsedDocs = nullDocs;
+                    IntFloatHashMap scores = nullScores;
+                    for (int head = 0; head < heads; head++) {
+                        collapsedDocs.set(headDocs[head]);
+                        if (needsScores) {
+                            scores.put(headDocs[head], headScores[head]);
+                        }
+                    }
+
+                    CollapsingQueryFilter.DummyScorer dummy = new CollapsingQueryFilter.DummyScorer();
+                    int groups = 0;
+                    int maxDoc = collapsedDocs.length();
+                    int docId = maxDoc > 0 ? collapsedDocs.nextSetBit(0) : DocIdSetIterator.NO_MORE_DOCS;
+                    int currentContext = -1;
+                    int nextDocBase = 0;
+                    int currentDocBase = 0;
+                    while (docId != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (docId >= nextDocBase) {
+                            while (docId >= nextDocBase) {
+                                currentContext++;
+                                nextDocBase = currentContext + 1 < contexts.length ? contexts[currentContext + 1].docBase : Integer.MAX_VALUE;
+                            }
+                            currentDocBase = contexts[currentContext].docBase;
+                            leafDelegate = delegate.getLeafCollector(contexts[currentContext]);
+                        }
+                        int contextDoc = docId - currentDocBase;
+                        dummy.docId = contextDoc;
+                        dummy.score = scores.getOrDefault(docId, 0f);
+                        leafDelegate.setScorer(dummy);
+                        leafDelegate.collect(contextDoc);
+                        groups++;
+                        docId = docId + 1 < maxDoc ? collapsedDocs.nextSetBit(docId + 1) : DocIdSetIterator.NO_MORE_DOCS;
+                    }
+                    timing.end(hits, groups, CollapseCounters.TOTAL_HITS);
+                }
+            };
+        } catch (IOException e) {
+            throw new FastCollapsingFilterInitializationException(e);
+        }
+    }
+
+    @Override
+    public int getCost() {
+        return Math.max(super.getCost(), 100);
+    }
+
+    @Override
+    public boolean getCache() {
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MinMaxCollapsingQueryFilter)) {
+            return false;
+        }
+        MinMaxCollapsingQueryFilter that = (MinMaxCollapsingQueryFilter) o;
+        return Objects.equals(this.field, that.field)
+                && Objects.equals(this.selectorField, that.selectorField)
+                && this.isMax == that.isMax;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(field, selectorField, isMax);
+    }
+}
@@ -0,0 +1,317 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongIntHashMap;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.search.FastCollapsingFilterInitializationException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortFieldsCompare;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_LEVEL_COUNTS;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_REQUEST_TOTAL_HITS;
+import static pl.allegro.search.solr.qparser.CollapsingQueryFilter.INIT_COLLAPSED_SET_SIZE;
+import static pl.allegro.search.solr.qparser.CollapsingQueryFilter.rewriteSort;
+
+/**
+ * Collapses documents by an ordered list of fields in a single pass over the matches,
+ * giving the same result as chaining collapse filters: first the best document of every group
+ * of the first field is chosen, then the best of those heads for every group of the second field and so on.
+ * <p>
+ * Only heads of the first level are tracked while collecting, together with the keys of the remaining levels
+ * read when a document becomes a head. Remaining levels are resolved in {@link DelegatingCollector#finish()}
+ * over the heads only, so the matches are never scanned again.
+ * <p>
+ * As with chained collapses, memory grows with the number of groups of the first level: the head of every group
+ * can be dropped only by a better head sharing a key of a later level, so none of them can be dropped while collecting.
+ * Only the best <code>queueSize</code> heads left after the last level are passed to the delegate, the number of all
+ * of them is published as the total hits. A negative <code>queueSize</code> passes all of them, e.g. for cursors
+ * and export.
+ */
+public class MultiLevelCollapsingQueryFilter extends ExtendedQueryBase implements PostFilter {
+
+    private final String[] fields;
+    private final SortedDocValuesHash.KeyType[] keyTypes;
+    private final Sort sort;
+    private final int queueSize;
+    private final boolean isLevelCounts;
+    private final Map<Object, Object> reqContext;
+
+    public MultiLevelCollapsingQueryFilter(String[] fields, FieldType[] fieldTypes, Sort sort, int queueSize, boolean isLevelCounts, Map<Object, Object> reqContext) {
+        this.fields = fields;
+        this.keyTypes = new SortedDocValuesHash.KeyType[fields.length];
+        for (int level = 0; level < fields.length; level++) {
+            keyTypes[level] = SortedDocValuesHash.KeyType.of(fieldTypes[level]);
+        }
+        this.sort = sort == null ? Sort.INDEXORDER : sort;
+        this.queueSize = queueSize;
+        this.isLevelCounts = isLevelCounts;
+        this.reqContext = reqContext;
+    }
+
+    @Override
+    public DelegatingCollector getFilterCollector(final IndexSearcher indexSearcher) {
+        SolrIndexSearcher searcher = (SolrIndexSearcher) indexSearcher;
+        int leafCount = searcher.getTopReaderContext().leaves().size();
+        int levels = fields.length;
+        try {
+            OrdinalMap[] ordinalMaps = new OrdinalMap[levels];
+            for (int level = 0; level < levels; level++) {
+                ordinalMaps[level] = SortedDocValuesHash.getOrdinalMap(searcher, fields[level], keyTypes[level]);
+            }
+            Sort rewrittenSort = rewriteSort(sort, searcher);
+            CollapseTiming timing = CollapseTiming.start(reqContext, leafCount);
+            return new DelegatingCollector() {
+                private final SortedDocValuesHash[] sortedDocValuesHashes = new SortedDocValuesHash[levels];
+                private int hits;
+                private final LeafReaderContext[] contexts = new LeafReaderContext[leafCount];
+                private final LongIntHashMap groupToHead = new LongIntHashMap(INIT_COLLAPSED_SET_SIZE);
+                private final SortFieldsCompare compareState = new SortFieldsCompare(rewrittenSort.getSort(), INIT_COLLAPSED_SET_SIZE);
+                // per head: global document, score and keys of the remaining levels (levels - 1 per head)
+                private int[] headDocs = new int[INIT_COLLAPSED_SET_SIZE];
+                private float[] headScores = new float[INIT_COLLAPSED_SET_SIZE];
+                private long[] headKeys = new long[INIT_COLLAPSED_SET_SIZE * (levels - 1)];
+                // set for the entries of headKeys of documents without a value, any numeric key is a valid key
+                private FixedBitSet headKeysMissing = new FixedBitSet(INIT_COLLAPSED_SET_SIZE * (levels - 1));
+                private int heads;
+                private boolean needsScores;
+
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    timing.beginSegment(context.ord);
+                    super.doSetNextReader(context);
+                    for (int level = 0; level < levels; level++) {
+                        sortedDocValuesHashes[level] = SortedDocValuesHash.create(context, fields[level], keyTypes[level], ordinalMaps[level]);
+                    }
+                    this.contexts[context.ord] = context;
+                    compareState.setNextReader(context);
+                }
+
+                @Override
+                public ScoreMode scoreMode() {
+                    return rewrittenSort.needsScores() ? ScoreMode.COMPLETE : super.scoreMode();
+                }
+
+                @Override
+                public void setScorer(Scorable scorer) throws IOException {
+                    super.setScorer(scorer);
+                    this.compareState.setScorer(scorer);
+                    needsScores = scoreMode().needsScores();
+                }
+
+                @Override
+                public void collect(int docNumber) throws IOException {
+                    hits++;
+                    if (!sortedDocValuesHashes[0].advanceExact(docNumber)) {
+                        // document without a value is a head of its own on the first level
+                        newHead(docNumber);
+                        return;
+                    }
+                    long collapsedFieldHash = sortedDocValuesHashes[0].key();
+                    int head = groupToHead.getOrDefault(collapsedFieldHash, -1);
+                    if (head < 0) {
+                        groupToHead.put(collapsedFieldHash, newHead(docNumber));
+                    } else if (compareState.testAndSetGroupValues(head, docNumber)) {
+                        setHead(head, docNumber);
+                    }
+                }
+
+                private int newHead(int docNumber) throws IOException {
+                    int head = heads++;
+                    if (headDocs.length <= head) {
+                        headDocs = ArrayUtil.grow(headDocs, head + 1);
+                        headScores = ArrayUtil.grow(headScores, head + 1);
+                    }
+                    if (headKeys.length < (head + 1) * (levels - 1)) {
+                        headKeys = ArrayUtil.grow(headKeys, (head + 1) * (levels - 1));
+                        headKeysMissing = FixedBitSet.ensureCapacity(headKeysMissing, headKeys.length);
+                    }
+                    if (compareState.groupHeadValues.length <= head) {
+                        compareState.grow(head + 1);
+                    }
+                    compareState.setGroupValues(head, docNumber);
+                    setHead(head, docNumber);
+                    return head;
+                }
+
+                private void setHead(int head, int docNumber) throws IOException {
+                    headDocs[head] = docNumber + docBase;
+                    if (needsScores) {
+                        headScores[head] = scorer.score();
+                    }
+                    for (int level = 1; level < levels; level++) {
+                        int index = head * (levels - 1) + level - 1;
+                        if (sortedDocValuesHashes[level].advanceExact(docNumber)) {
+                            headKeys[index] = sortedDocValuesHashes[level].key();
+                            headKeysMissing.clear(index);
+                        } else {
+                            headKeysMissing.set(index);
+                        }
+                    }
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    timing.beginFinish();
+                    SimpleOrderedMap<Integer> levelCounts = new SimpleOrderedMap<>();
+                    IntArrayList survivors = new IntArrayList(heads);
+                    for (int head = 0; head < heads; head++) {
+                        survivors.add(head);
+                    }
+                    levelCounts.add(fields[0], survivors.size());
+                    for (int level = 1; level < levels; level++) {
+                        survivors = collapseLevel(survivors, level);
+                        levelCounts.add(fields[level], survivors.size());
+                    }
+                    if (isLevelCounts) {
+                        reqContext.put(COLLAPSING_LEVEL_COUNTS, levelCounts);
+                    }
+                    int groups = survivors.size();
+                    if (queueSize >= 0) {
+                        reqContext.put(COLLAPSING_REQUEST_TOTAL_HITS, groups);
+                        survivors = best(survivors);
+                    }
+                    collectHeads(survivors);
+                    // with a bounded queue numFound is the number of heads left after the last level, published above
+                    timing.end(hits, groups, queueSize >= 0 ? CollapseCounters.EXACT : CollapseCounters.TOTAL_HITS);
+                }
+
+                /**
+                 * Keeps the best <code>queueSize</code> of the heads in a bounded queue with the worst of them on top.
+                 */
+                private IntArrayList best(IntArrayList candidates) {
+                    if (candidates.size() <= queueSize) {
+                        return candidates;
+                    }
+                    PriorityQueue<Integer> queue = new PriorityQueue<Integer>(queueSize) {
+                        @Override
+                        protected boolean lessThan(Integer head, Integer other) {
+                            return isBetter(other, head);
+                        }
+                    };
+                    for (int i = 0; i < candidates.size(); i++) {
+                        queue.insertWithOverflow(candidates.get(i));
+                    }
+                    IntArrayList best = new IntArrayList(queue.size());
+                    while (queue.size() > 0) {
+                        best.add(queue.pop());
+                    }
+                    return best;
+                }
+
+                /**
+                 * Keeps the best of the given heads for every key of the given level, heads without a key are kept as they are.
+                 */
+                private IntArrayList collapseLevel(IntArrayList candidates, int level) {
+                    LongIntHashMap keyToHead = new LongIntHashMap(candidates.size());
+                    IntArrayList survivors = new IntArrayList(candidates.size());
+                    for (int i = 0; i < candidates.size(); i++) {
+                        int head = candidates.get(i);
+                        int index = head * (levels - 1) + level - 1;
+                        if (headKeysMissing.get(index)) {
+                            survivors.add(head);
+                            continue;
+                        }
+                        long key = headKeys[index];
+                        int best = keyToHead.getOrDefault(key, -1);
+                        if (best < 0 || isBetter(head, best)) {
+                            keyToHead.put(key, head);
+                        }
+                    }
+                    for (int i = 0; i < candidates.size(); i++) {
+                        int head = candidates.get(i);
+                        int index = head * (levels - 1) + level - 1;
+                        if (!headKeysMissing.get(index) && keyToHead.get(headKeys[index]) == head) {
+                            survivors.add(head);
+                        }
+                    }
+                    return survivors;
+                }
+
+                private boolean isBetter(int head, int other) {
+                    int compare = compareState.compareGroupValues(head, other);
+                    // on a tie the document which was collected first wins
+                    return compare < 0 || (compare == 0 && headDocs[head] < headDocs[other]);
+                }
+
+                private void collectHeads(IntArrayList survivors) throws IOException {
+                    // global document in the upper bits, so that sorting gives heads in order of documents
+                    long[] docsWithHeads = new long[survivors.size()];
+                    for (int i = 0; i < survivors.size(); i++) {
+                        int head = survivors.get(i);
+                        docsWithHeads[i] = ((long) headDocs[head] << 32) | head;
+                    }
+                    Arrays.sort(docsWithHeads);
+
+                    CollapsingQueryFilter.DummyScorer dummy = new CollapsingQueryFilter.DummyScorer();
+                    int currentContext = -1;
+                    int nextDocBase = 0;
+                    int currentDocBase = 0;
+                    for (long docWithHead : docsWithHeads) {
+                        int head = (int) docWithHead;
+                        int docId = headDocs[head];
+                        if (docId >= nextDocBase) {
+                            while (docId >= nextDocBase) {
+                                currentContext++;
+                                nextDocBase = currentContext + 1 < contexts.length ? contexts[currentContext + 1].docBase : Integer.MAX_VALUE;
+                            }
+                            currentDocBase = contexts[currentContext].docBase;
+                            leafDelegate = delegate.getLeafCollector(contexts[currentContext]);
+                        }
+                        int contextDoc = docId - currentDocBase;
+                        dummy.docId = contextDoc;
+                        dummy.score = headScores[head];
+                        leafDelegate.setScorer(dummy);
+                        leafDelegate.collect(contextDoc);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new FastCollapsingFilterInitializationException(e);
+        }
+    }
+
+    @Override
+    public int getCost() {
+        return Math.max(super.getCost(), 100);
+    }
+
+    @Override
+    public boolean getCache() {
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MultiLevelCollapsingQueryFilter)) {
+            return false;
+        }
+        MultiLevelCollapsingQueryFilter that = (MultiLevelCollapsingQueryFilter) o;
+        return Arrays.equals(this.fields, that.fields)
+                && Objects.equals(this.sort, that.sort)
+                && this.queueSize == that.queueSize
+                && this.isLevelCounts == that.isLevelCounts;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hash(sort, queueSize, isLevelCounts) + Arrays.hashCode(fields);
+    }
+}
@@ -0,0 +1,36 @@
+package pl.allegro.search.solr.qparser;
+
+import org.apache.solr.common.SolrException;
+
+import java.util.Locale;
+
+/**
+ * How documents without a value of the collapsing field are handled.
+ */
+public enum NullPolicy {
+    /**
+     * Documents without a value are dropped. For a field the parser adds a clause requiring its value to the main query,
+     * so they are skipped by the doc values iterator of the field, documents without a value of a function key
+     * are dropped by the collector.
+     */
+    IGNORE,
+    /**
+     * Every document without a value is a group of its own.
+     */
+    EXPAND,
+    /**
+     * All documents without a value make a single group.
+     */
+    COLLAPSE;
+
+    public static NullPolicy of(String name) {
+        if (name == null) {
+            return EXPAND;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid nullPolicy: " + name);
+        }
+    }
+}
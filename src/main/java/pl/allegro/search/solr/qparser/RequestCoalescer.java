@@ -0,0 +1,83 @@
+package pl.allegro.search.solr.qparser;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single flight execution: of concurrent calls with equal keys only the first one computes the value,
+ * the others wait for it at most the given time and then compute it themselves, as they do when the first call fails.
+ * A key is registered only while its computation is in flight, so values are never reused by later calls.
+ * <p>
+ * Registration is a single {@link ConcurrentHashMap#putIfAbsent(Object, Object)}, which locks only one bin of the map.
+ */
+public class RequestCoalescer<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    public RequestCoalescer(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the value computed by this call or by a concurrent call with an equal key.
+     */
+    public Result<V> execute(K key, Callable<V> computation) throws Exception {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, future);
+        if (leader == null) {
+            try {
+                V value = computation.call();
+                future.complete(value);
+                return new Result<>(value, false);
+            } catch (Exception | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+        try {
+            return new Result<>(leader.get(timeoutMillis, TimeUnit.MILLISECONDS), true);
+        } catch (TimeoutException | ExecutionException e) {
+            return new Result<>(computation.call(), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of keys in flight, for tests.
+     */
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    public static final class Result<V> {
+
+        private final V value;
+        private final boolean isCoalesced;
+
+        Result(V value, boolean isCoalesced) {
+            this.value = value;
+            this.isCoalesced = isCoalesced;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Returns whether the value was computed by another call.
+         */
+        public boolean isCoalesced() {
+            return isCoalesced;
+        }
+    }
+}
@@ -1,46 +1,124 @@
 package pl.allegro.search.solr.qparser;
 
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.OrdinalMap;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.search.DocIdSetIterator;
-import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IntValueFieldType;
 import org.apache.solr.schema.LongValueFieldType;
+import org.apache.solr.search.SolrIndexSearcher;
 
 import java.io.IOException;
 
-public class SortedDocValuesHash {
-    public static final int EMPTY = new BytesRef().hashCode();
+/**
+ * Reads the collapse key of documents of a single segment.
+ * <p>
+ * The kind of key is resolved once per query (see {@link KeyType}) and every kind has its own final implementation,
+ * so that the per document call does not branch on the field type.
+ */
+public abstract class SortedDocValuesHash {
 
-    private final DocIdSetIterator docValues;
-    private FieldType fieldType;
+    /**
+     * Ordinal keys are shifted above the int range, so that they never look like values of an int field.
+     */
+    static final long ORDINAL_OFFSET = 1L << 32;
 
-    public SortedDocValuesHash(LeafReader reader, String field, FieldType fieldType) throws IOException {
-        this.fieldType = fieldType;
-        if (fieldType instanceof LongValueFieldType || fieldType instanceof IntValueFieldType) {
-                docValues = reader.getNumericDocValues(field);
-        } else {
-            docValues = reader.getSortedDocValues(field);
+    public enum KeyType {
+        /**
+         * Int and long fields, the key is the value itself.
+         */
+        NUMERIC,
+        /**
+         * String fields, the key is the global ordinal of the value.
+         */
+        ORDINAL;
+
+        public static KeyType of(FieldType fieldType) {
+            if (fieldType instanceof LongValueFieldType || fieldType instanceof IntValueFieldType) {
+                return NUMERIC;
+            }
+            return ORDINAL;
         }
     }
 
-    public long getHash(int docNumber) throws IOException {
-        if (docValues == null || docValues.docID() == Integer.MAX_VALUE || docValues.docID() > docNumber) {
-            return EMPTY;
+    /**
+     * Positions on the given document and returns whether it has a value of the collapsing field,
+     * documents have to be visited in order within a segment.
+     */
+    public abstract boolean advanceExact(int docNumber) throws IOException;
+
+    /**
+     * Returns the key of the document the last {@link #advanceExact(int)} call returned true for.
+     */
+    public abstract long key() throws IOException;
+
+    /**
+     * Returns the mapping of segment ordinals to global ordinals for string fields,
+     * or null if keys are numeric or the segment ordinals are already global (single segment index).
+     * It should be resolved once per query, Solr caches it per searcher.
+     */
+    public static OrdinalMap getOrdinalMap(SolrIndexSearcher searcher, String field, KeyType keyType) throws IOException {
+        if (keyType != KeyType.ORDINAL) {
+            return null;
         }
-        if (docValues.docID() == docNumber || docValues.advance(docNumber) == docNumber) {
-            return getValue();
+        SortedDocValues topLevelValues = searcher.getSlowAtomicReader().getSortedDocValues(field);
+        if (topLevelValues instanceof MultiDocValues.MultiSortedDocValues) {
+            return ((MultiDocValues.MultiSortedDocValues) topLevelValues).mapping;
+        }
+        return null;
+    }
+
+    public static SortedDocValuesHash create(LeafReaderContext context, String field, KeyType keyType, OrdinalMap ordinalMap) throws IOException {
+        LeafReader reader = context.reader();
+        if (keyType == KeyType.NUMERIC) {
+            return new NumericHash(reader.getNumericDocValues(field));
         }
-        return EMPTY;
+        return new OrdinalHash(reader.getSortedDocValues(field), ordinalMap == null ? null : ordinalMap.getGlobalOrds(context.ord));
     }
 
-    private long getValue() throws IOException {
-        if (fieldType instanceof LongValueFieldType || fieldType instanceof IntValueFieldType) {
-            return ((NumericDocValues) docValues).longValue();
-        } else {
-            return ((SortedDocValues) docValues).binaryValue().hashCode();
+    private static final class NumericHash extends SortedDocValuesHash {
+
+        private final NumericDocValues docValues;
+
+        NumericHash(NumericDocValues docValues) {
+            this.docValues = docValues;
+        }
+
+        @Override
+        public boolean advanceExact(int docNumber) throws IOException {
+            return docValues != null && docValues.advanceExact(docNumber);
+        }
+
+        @Override
+        public long key() throws IOException {
+            return docValues.longValue();
+        }
+    }
+
+    private static final class OrdinalHash extends SortedDocValuesHash {
+
+        private final SortedDocValues docValues;
+        private final LongValues globalOrds;
+
+        OrdinalHash(SortedDocValues docValues, LongValues globalOrds) {
+            this.docValues = docValues;
+            this.globalOrds = globalOrds;
+        }
+
+        @Override
+        public boolean advanceExact(int docNumber) throws IOException {
+            return docValues != null && docValues.advanceExact(docNumber);
+        }
+
+        @Override
+        public long key() throws IOException {
+            int ord = docValues.ordValue();
+            return ORDINAL_OFFSET + (globalOrds == null ? ord : globalOrds.get(ord));
         }
     }
 }
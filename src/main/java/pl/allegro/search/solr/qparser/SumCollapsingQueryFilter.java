@@ -2,61 +2,91 @@ package pl.allegro.search.solr.qparser;
 
 import com.carrotsearch.hppc.LongHashSet;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.search.FastCollapsingFilterInitializationException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.search.DelegatingCollector;
 import org.apache.solr.search.ExtendedQueryBase;
 import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrIndexSearcher;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Objects;
 
-import static pl.allegro.search.solr.qparser.SortedDocValuesHash.EMPTY;
-
 public class SumCollapsingQueryFilter extends ExtendedQueryBase implements PostFilter {
 
     private final String field;
-    private final FieldType fieldType;
+    private final SortedDocValuesHash.KeyType keyType;
+    private final Map<Object, Object> reqContext;
 
 
-    public SumCollapsingQueryFilter(String field, FieldType fieldType) {
+    public SumCollapsingQueryFilter(String field, FieldType fieldType, Map<Object, Object> reqContext) {
         this.field = field;
-        this.fieldType = fieldType;
+        this.keyType = SortedDocValuesHash.KeyType.of(fieldType);
+        this.reqContext = reqContext;
     }
 
     @Override
     public DelegatingCollector getFilterCollector(IndexSearcher indexSearcher) {
+        OrdinalMap ordinalMap;
+        try {
+            ordinalMap = SortedDocValuesHash.getOrdinalMap((SolrIndexSearcher) indexSearcher, field, keyType);
+        } catch (IOException e) {
+            throw new FastCollapsingFilterInitializationException(e);
+        }
+        CollapseTiming timing = CollapseTiming.start(reqContext, indexSearcher.getTopReaderContext().leaves().size());
         return new DelegatingCollector() {
             private SortedDocValuesHash sortedDocValuesHash;
+            private int hits;
+            private int groups;
             private long previousHash;
-            private boolean firstDocumentInSegment;
+            // false at the start of a segment and after a document without a value
+            private boolean hasPreviousHash;
 
             private LongHashSet alreadyCollapsed = new LongHashSet();
 
 
             @Override
             public void collect(int docNumber) throws IOException {
-                final long collapsedFieldHash = sortedDocValuesHash.getHash(docNumber);
-
-                if (collapsedFieldHash == EMPTY) {
+                hits++;
+                if (!sortedDocValuesHash.advanceExact(docNumber)) {
                     super.collect(docNumber);
-                } else {
-                    if (firstDocumentInSegment || collapsedFieldHash != previousHash) {
-                        if (!alreadyCollapsed.contains(collapsedFieldHash)) {
-                            super.collect(docNumber);
-                            alreadyCollapsed.add(collapsedFieldHash);
-                        }
+                    groups++;
+                    hasPreviousHash = false;
+                    return;
+                }
+                final long collapsedFieldHash = sortedDocValuesHash.key();
+                if (!hasPreviousHash || collapsedFieldHash != previousHash) {
+                    if (!alreadyCollapsed.contains(collapsedFieldHash)) {
+                        super.collect(docNumber);
+                        groups++;
+                        alreadyCollapsed.add(collapsedFieldHash);
                     }
                 }
                 previousHash = collapsedFieldHash;
-                firstDocumentInSegment = false;
+                hasPreviousHash = true;
             }
 
             @Override
             protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                timing.beginSegment(context.ord);
                 super.doSetNextReader(context);
-                sortedDocValuesHash = new SortedDocValuesHash(context.reader(), field, fieldType);
-                firstDocumentInSegment = true;
+                sortedDocValuesHash = SortedDocValuesHash.create(context, field, keyType, ordinalMap);
+                hasPreviousHash = false;
+            }
+
+            /**
+             * Documents are passed on while collecting, so the finish phase only records the counters.
+             * The first document of every group and every document without a value reach the delegate exactly once,
+             * so its total hits are the exact number of groups.
+             */
+            @Override
+            public void finish() throws IOException {
+                timing.beginFinish();
+                super.finish();
+                timing.end(hits, groups, CollapseCounters.EXACT);
             }
         };
     }
@@ -0,0 +1,44 @@
+package org.apache.lucene.search;
+
+/**
+ * Selects documents of a batch which can enter the queue: those not strictly worse than the queue bottom
+ * on the primary sort clause, values decoded by {@link PrimarySortValues}, so that only they go on to key lookup
+ * and the queue.
+ * <p>
+ * This is the version for Java 16 and later of the multi-release jar. It compares a vector of values at once
+ * ({@link VectorSurvivors}) when the <code>jdk.incubator.vector</code> module is in the boot layer
+ * (<code>--add-modules jdk.incubator.vector</code>), otherwise it uses the scalar loop of the Java 8 version.
+ */
+public final class SurvivorSelector {
+
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private SurvivorSelector() {
+    }
+
+    /**
+     * Returns whether {@link #select(double[], int, double, double, int[])} uses the Vector API.
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Writes indexes of values[0..length) for which <code>sign * value &gt; bottom</code> does not hold, in ascending order,
+     * to survivors and returns their number. NaN values always survive and are left to the comparator.
+     */
+    public static int select(double[] values, int length, double sign, double bottom, int[] survivors) {
+        if (VECTORIZED) {
+            return VectorSurvivors.select(values, length, sign, bottom, survivors);
+        }
+        return ScalarSurvivors.select(values, length, sign, bottom, survivors);
+    }
+
+    /**
+     * The same as {@link #select(double[], int, double, double, int[])} with the scalar loop, which is faster
+     * when more than a few percent of values survive.
+     */
+    public static int selectScalar(double[] values, int length, double sign, double bottom, int[] survivors) {
+        return ScalarSurvivors.select(values, length, sign, bottom, survivors);
+    }
+}
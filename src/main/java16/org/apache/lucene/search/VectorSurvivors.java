@@ -0,0 +1,40 @@
+package org.apache.lucene.search;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector loop of {@link SurvivorSelector}: values are compared with the bottom a vector at a time and only vectors
+ * with a survivor are checked value by value, which pays off when few documents survive, as once the queue is full.
+ * Referenced only when the <code>jdk.incubator.vector</code> module is present.
+ */
+final class VectorSurvivors {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorSurvivors() {
+    }
+
+    static int select(double[] values, int length, double sign, double bottom, int[] survivors) {
+        int count = 0;
+        int i = 0;
+        for (int upperBound = SPECIES.loopBound(length); i < upperBound; i += SPECIES.length()) {
+            if (DoubleVector.fromArray(SPECIES, values, i).mul(sign).compare(VectorOperators.GT, bottom).allTrue()) {
+                continue;
+            }
+            for (int end = i + SPECIES.length(), j = i; j < end; j++) {
+                // negated so that NaN values are left to the comparator
+                if (!(sign * values[j] > bottom)) {
+                    survivors[count++] = j;
+                }
+            }
+        }
+        for (; i < length; i++) {
+            if (!(sign * values[i] > bottom)) {
+                survivors[count++] = i;
+            }
+        }
+        return count;
+    }
+}
@@ -1,19 +1,70 @@
 package pl.allegro.search.solr.qparser;
 
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
 import com.google.common.collect.Lists;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.io.Files;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.valuesource.LongFieldSource;
+import org.apache.lucene.search.FastCollapsingQueryFilter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QuickPatchThreadsFilter;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.SolrIgnoredThreadsFilter;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
 import org.junit.After;
+import org.noggit.ObjectBuilder;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import static com.carrotsearch.randomizedtesting.RandomizedTest.getContext;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_HEAP_COLLECTOR;
+import static org.apache.solr.search.FastCollapsingNumFoundSearchComponent.COLLAPSING_REQUEST_TOTAL_HITS;
 
+// the filters of SolrTestCaseJ4 and of the threads of the flight recording
+@ThreadLeakFilters(defaultFilters = true, filters = {SolrIgnoredThreadsFilter.class, QuickPatchThreadsFilter.class, JfrThreadsFilter.class})
 public class FastCollapsingFilterTest extends SolrTestCaseJ4 {
 
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -24,6 +75,8 @@ public class FastCollapsingFilterTest extends SolrTestCaseJ4 {
 
     private String FILTER_QUERY = "{!fastCollapse field=%s}*:*";
 
+    private String BATCHED_FILTER_QUERY = "{!fastCollapse field=%s batch=true}*:*";
+
     @Before
     public void setup() throws Exception {
         log.info("seed: " + getContext().getRunnerSeedAsString());
@@ -190,4 +243,959 @@ public class FastCollapsingFilterTest extends SolrTestCaseJ4 {
                         "((//str[@name='id'])[5])/text()=203"));
     }
 
+    @Test
+    public void shouldCollectBestDocumentsInBatchedMode() throws Exception {
+        //given
+        for (int i = 0; i < 150; i++) {
+            index.indexDocument(1000 + i, "koń", String.valueOf(1234567 + i % 3), 50 + i);
+        }
+        index.indexDocument(1, "pojedynczy dokument", null, 100);
+        index.commit();
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", String.format(BATCHED_FILTER_QUERY, field), "sort", "price asc", "rows", "3"),
+                        "*[count(//doc)=3]",
+                        "((//str[@name='id'])[1])/text()=1000",
+                        "((//str[@name='id'])[2])/text()=1001",
+                        "((//str[@name='id'])[3])/text()=1002"));
+    }
+
+    @Test
+    public void shouldCollapseByVariantAndThenBySeller() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", "a", 1);
+        index.indexDocumentAndCommit(201, "antylopa", "007", "a", 2);
+        index.indexDocumentAndCommit(202, "zebra", "007", "b", 3);
+        index.indexDocumentAndCommit(301, "pojedynczy dokument", null, "b", 4);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field -> {
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + ",seller levelCounts=true}*:*", "sort", "price asc",
+                            "qt", "/collapse"),
+                    "*[count(//doc)=2]",
+                    "//result[@numFound='2']",
+                    "((//str[@name='id'])[1])/text()=101",
+                    "((//str[@name='id'])[2])/text()=301",
+                    "count(//lst[@name='collapseLevelCounts']/int)=2",
+                    "//lst[@name='collapseLevelCounts']/int[@name='" + field + "'][.='3']",
+                    "//lst[@name='collapseLevelCounts']/int[@name='seller'][.='2']");
+            // only the best heads left after the last level reach the delegate, all of them are counted
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + ",seller}*:*", "sort", "price desc", "rows", "1",
+                            "qt", "/collapse"),
+                    "*[count(//doc)=1]",
+                    "//result[@numFound='2']",
+                    "((//str[@name='id'])[1])/text()=301",
+                    "count(//lst[@name='collapseLevelCounts'])=0");
+        });
+    }
+
+    @Test
+    public void shouldCollectLimitedNumberOfBestDocumentsFromVariant() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(103, "zebra", "1234567", 3);
+        index.indexDocumentAndCommit(201, "James Bond", "007", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "007", 6);
+        index.indexDocumentAndCommit(203, "Ethan Hunt", "007", 7);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " limit=2}*:*", "sort", "price asc", "rows", "5"),
+                        "*[count(//doc)=5]",
+                        "((//str[@name='id'])[1])/text()=102",
+                        "((//str[@name='id'])[2])/text()=201",
+                        "((//str[@name='id'])[3])/text()=103",
+                        "((//str[@name='id'])[4])/text()=1",
+                        "((//str[@name='id'])[5])/text()=202"));
+    }
+
+    @Test
+    public void shouldReturnStatsOfVariantWithBestDocument() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(103, "zebra", "1234567", 3);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " stats=price}*:*", "sort", "price asc", "fl", "id,[collapseStats]"),
+                        "*[count(//doc)=2]",
+                        "//doc[str[@name='id']='102']/lst[@name='[collapseStats]']/int[@name='count'][.='3']",
+                        "//doc[str[@name='id']='102']/lst[@name='[collapseStats]']/lst[@name='price']/double[@name='min'][.='1.0']",
+                        "//doc[str[@name='id']='102']/lst[@name='[collapseStats]']/lst[@name='price']/double[@name='max'][.='5.0']",
+                        "//doc[str[@name='id']='102']/lst[@name='[collapseStats]']/lst[@name='price']/double[@name='sum'][.='9.0']",
+                        "count(//doc[str[@name='id']='1']/lst[@name='[collapseStats]'])=0"));
+    }
+
+    @Test
+    public void shouldCountFacetsOverVariants() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", "a", 1);
+        index.indexDocumentAndCommit(102, "zebra", "1234567", "a", 2);
+        index.indexDocumentAndCommit(201, "antylopa", "007", "b", 3);
+        index.indexDocumentAndCommit(202, "James Bond", "007", "b", 4);
+        index.indexDocumentAndCommit(301, "pojedynczy dokument", null, "b", 5);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("qt", "/collapse", "q", "*:*", "fq", "{!fastCollapse field=" + field + " groupFacets=true}*:*",
+                        "sort", "price asc", "rows", "1", "facet", "true", "facet.field", "seller"),
+                        "*[count(//doc)=1]",
+                        "//lst[@name='facet_fields']/lst[@name='seller']/int[@name='a'][.='1']",
+                        "//lst[@name='facet_fields']/lst[@name='seller']/int[@name='b'][.='2']"));
+    }
+
+    @Test
+    public void shouldExpandReturnedVariantsWithTheirOtherDocuments() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(103, "zebra", "1234567", 3);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", 6);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", "9", 8);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("qt", "/collapse", "q", "*:*", "fq", "{!fastCollapse field=" + field + "}*:*",
+                        "sort", "price asc", "rows", "2", "fastExpand", "true", "fastExpand.rows", "1"),
+                        "*[count(/response/result/doc)=2]",
+                        "count(//lst[@name='expanded']/result)=2",
+                        "//lst[@name='expanded']/result[@name='1234567']/doc/str[@name='id'][.='103']",
+                        "//lst[@name='expanded']/result[@name='1234567'][@numFound='2']",
+                        "//lst[@name='expanded']/result[@name='7']/doc/str[@name='id'][.='202']"));
+    }
+
+    @Test
+    public void shouldCollectAllBestDocumentsWithCursor() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", 6);
+        index.indexDocument(301, "Ethan Hunt", null, 3);
+        index.indexDocument(302, "Ethan Hunt", "9", 7);
+        index.commit();
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", String.format(FILTER_QUERY, field), "sort", "price asc, id asc", "cursorMark", "*"),
+                        "*[count(//doc)=5]",
+                        "((//str[@name='id'])[1])/text()=102",
+                        "((//str[@name='id'])[2])/text()=201",
+                        "((//str[@name='id'])[3])/text()=301",
+                        "((//str[@name='id'])[4])/text()=1",
+                        "((//str[@name='id'])[5])/text()=302"));
+    }
+
+    @Test
+    public void shouldReselectBestDocumentOfVariantAfterReRanking() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 2);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("qt", "/collapse", "q", "*:*", "fq", "{!fastCollapse field=" + field + " limit=2 reselect=true}*:*",
+                        "rq", "{!rerank reRankQuery=$rqq reRankDocs=10 reRankWeight=10}", "rqq", "name:antylopa"),
+                        "*[count(//doc)=2]",
+                        "((//str[@name='id'])[1])/text()=102",
+                        "((//str[@name='id'])[2])/text()=201"));
+    }
+
+    @Test
+    public void shouldReturnFullPageOfReselectedHeadsWhenGroupsTakeMoreDocumentsThanReRankDocs() throws Exception {
+        //given
+        index.indexDocument(101, "koń", "1234567", 1);
+        index.indexDocument(102, "antylopa", "1234567", 2);
+        index.indexDocument(201, "James Bond", "7", 3);
+        index.indexDocument(202, "Jason Bourne", "7", 4);
+        index.indexDocument(301, "Ethan Hunt", "9", 5);
+        index.indexDocument(302, "Ethan Hunt", "9", 6);
+        index.indexDocument(401, "Jack Ryan", "11", 7);
+        index.indexDocument(402, "Jack Ryan", "11", 8);
+        index.commit();
+
+        // expect: the first pass score puts both members of a group next to each other,
+        // so reRankDocs=3 documents hold only two groups
+        COLLAPSE_FIELD.forEach(field -> {
+            assertQ(req("qt", "/collapse", "q", "{!func}sub(10,price)", "fq", "{!fastCollapse field=" + field + " limit=2 reselect=true}*:*",
+                    "rq", "{!rerank reRankQuery=$rqq reRankDocs=3 reRankWeight=10}", "rqq", "name:antylopa", "rows", "3"),
+                    "*[count(//doc)=3]",
+                    "((//str[@name='id'])[1])/text()=102",
+                    "((//str[@name='id'])[2])/text()=201",
+                    "((//str[@name='id'])[3])/text()=301");
+            assertQ(req("qt", "/collapse", "q", "{!func}sub(10,price)", "fq", "{!fastCollapse field=" + field + " limit=2 reselect=true}*:*",
+                    "rq", "{!rerank reRankQuery=$rqq reRankDocs=3 reRankWeight=10}", "rqq", "name:antylopa", "rows", "2", "start", "1"),
+                    "*[count(//doc)=2]",
+                    "((//str[@name='id'])[1])/text()=201",
+                    "((//str[@name='id'])[2])/text()=301");
+        });
+    }
+
+    @Test
+    public void shouldChooseCheapestDocumentOfVariantAndSortHeadsByName() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(103, "zebra", "1234567", 3);
+        index.indexDocument(201, "James Bond", "7", 6);
+        index.indexDocument(202, "Ethan Hunt", "7", 2);
+        index.indexDocument(301, "pojedynczy dokument", null, 4);
+        index.commit();
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " min=price}*:*", "sort", "id desc"),
+                        "*[count(//doc)=3]",
+                        "((//str[@name='id'])[1])/text()=301",
+                        "((//str[@name='id'])[2])/text()=202",
+                        "((//str[@name='id'])[3])/text()=102"));
+    }
+
+    @Test
+    public void shouldRejectMinMaxWithOptionsItDoesNotSupport() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+
+        // expect
+        Stream.of("limit=2", "stats=price", "groupFacets=true", "exactCount=true", "nullPolicy=collapse").forEach(option ->
+                assertQEx(option, "does not support", req("q", "*:*", "fq", "{!fastCollapse field=variant max=price " + option + "}*:*",
+                        "sort", "id desc"), SolrException.ErrorCode.BAD_REQUEST));
+        assertQEx("fastCollapse.sort", "does not support", req("q", "*:*", "fq", "{!fastCollapse field=variant max=price}*:*",
+                "sort", "id desc", "fastCollapse.sort.cheapest", "price asc"), SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void shouldRejectMultipleFieldsWithOptionsTheyDoNotSupport() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+
+        // expect
+        Stream.of("limit=2", "stats=price", "groupFacets=true", "exactCount=true", "batch=true", "nullPolicy=collapse",
+                "min=price", "max=price").forEach(option ->
+                assertQEx(option, "does not support", req("q", "*:*", "fq", "{!fastCollapse field=variant,seller " + option + "}*:*",
+                        "sort", "price asc"), SolrException.ErrorCode.BAD_REQUEST));
+        assertQEx("fastCollapse.sort", "does not support", req("q", "*:*", "fq", "{!fastCollapse field=variant,seller}*:*",
+                "sort", "price asc", "fastCollapse.sort.cheapest", "price asc"), SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void shouldRejectCursorAndExportWithOptionsTheyDoNotSupport() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+
+        // expect
+        Stream.of("limit=2", "stats=price", "groupFacets=true").forEach(option -> {
+            assertQEx(option, "does not support", req("q", "*:*", "fq", "{!fastCollapse field=variant " + option + "}*:*",
+                    "sort", "price asc, id asc", "cursorMark", "*"), SolrException.ErrorCode.BAD_REQUEST);
+            assertQEx(option, "does not support", req("qt", "/export", "q", "*:*", "fq", "{!fastCollapse field=variant " + option + "}*:*",
+                    "sort", "price asc", "fl", "id"), SolrException.ErrorCode.BAD_REQUEST);
+        });
+    }
+
+    @Test
+    public void shouldRejectCollapsingWithoutFieldOrKey() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+
+        // expect
+        assertQEx("no field", "field or key is required", req("q", "*:*", "fq", "{!fastCollapse}*:*", "sort", "price asc"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("empty field", "field or key is required", req("q", "*:*", "fq", "{!fastCollapse field=''}*:*", "sort", "price asc"),
+                SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void shouldSkipDocumentsWithoutVariantWhenNullPolicyIsIgnore() throws Exception {
+        //given
+        index.indexDocument(null, "pojedynczy dokument", null, 1);
+        index.indexDocument(101, "koń", "1234567", 5);
+        index.indexDocument(102, "antylopa", "1234567", 3);
+        index.indexDocument(null, "pojedynczy dokument", null, 2);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 9);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field -> {
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " nullPolicy=ignore exactCount=true}*:*", "sort", "price asc",
+                            "qt", "/collapse"),
+                    "//result[@numFound='2']",
+                    "*[count(//doc)=2]",
+                    "((//str[@name='id'])[1])/text()=102",
+                    "((//str[@name='id'])[2])/text()=201");
+            // the estimate counts the three documents with a value, also those rejected at the bottom of a full queue
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " nullPolicy=ignore}*:*", "sort", "price asc", "rows", "1",
+                            "qt", "/collapse"),
+                    "//result[@numFound='3']",
+                    "*[count(//doc)=1]",
+                    "((//str[@name='id'])[1])/text()=102");
+            // documents without a value are skipped by the main query, before they reach the collector
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " nullPolicy=ignore}*:*", "sort", "price asc",
+                            "debugQuery", "true"),
+                    "*[count(//doc)=2]",
+                    "//str[@name='parsedquery'][contains(text(), 'DocValuesFieldExistsQuery [field=" + field + "]')]");
+        });
+    }
+
+    @Test
+    public void shouldRejectNullPolicyWhereItIsNotHonoured() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 1);
+
+        // expect
+        assertQEx("no sort", "does not support nullPolicy", req("q", "*:*", "fq", "{!fastCollapse field=variant nullPolicy=ignore}*:*"),
+                SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("no rows", "does not support nullPolicy", req("q", "*:*", "fq", "{!fastCollapse field=variant nullPolicy=ignore}*:*",
+                "sort", "price asc", "rows", "0"), SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("cursor", "does not support nullPolicy", req("q", "*:*", "fq", "{!fastCollapse field=variant nullPolicy=collapse}*:*",
+                "sort", "price asc, id asc", "cursorMark", "*"), SolrException.ErrorCode.BAD_REQUEST);
+        assertQEx("export", "does not support nullPolicy", req("qt", "/export", "q", "*:*", "fq", "{!fastCollapse field=variant nullPolicy=ignore}*:*",
+                "sort", "price asc", "fl", "id"), SolrException.ErrorCode.BAD_REQUEST);
+    }
+
+    @Test
+    public void shouldTellDocumentsWithoutValueFromNumericKeyEqualToHashOfEmptyValueInEveryFilter() throws Exception {
+        //given
+        // the hash of an empty value used to mark documents without a value
+        String variant = Integer.toString(new BytesRef().hashCode());
+        index.indexDocument(101, "koń", variant, "1", 5);
+        index.indexDocument(102, "antylopa", variant, "2", 3);
+        index.indexDocument(null, "pojedynczy dokument", null, 4);
+        index.commit();
+
+        // expect
+        Stream.of(
+                new String[]{"fq", "{!fastCollapse field=variant_hash}*:*", "sort", "price asc"},
+                new String[]{"fq", "{!fastCollapse field=variant_hash}*:*"},
+                new String[]{"fq", "{!fastCollapse field=variant_hash}*:*", "sort", "price asc", "rows", "0"},
+                new String[]{"fq", "{!fastCollapse field=variant_hash}*:*", "sort", "price asc, id asc", "cursorMark", "*"},
+                new String[]{"fq", "{!fastCollapse field=variant_hash min=price}*:*", "sort", "id asc"},
+                new String[]{"fq", "{!fastCollapse field=variant_hash,seller}*:*", "sort", "price asc"},
+                new String[]{"fq", "{!fastCollapse field=seller,variant_hash}*:*", "sort", "price asc"}
+        ).forEach(request -> {
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.add("q", "*:*");
+            for (int i = 0; i < request.length; i += 2) {
+                params.add(request[i], request[i + 1]);
+            }
+            assertQ(Arrays.toString(request), req(params), "//result[@numFound='2']");
+        });
+    }
+
+    @Test
+    public void shouldCollapseDocumentsWithoutVariantWhenNullPolicyIsCollapse() throws Exception {
+        //given
+        index.indexDocument(101, "koń", "1234567", 5);
+        index.indexDocument(301, "pojedynczy dokument", null, 3);
+        index.indexDocument(102, "antylopa", "1234567", 4);
+        index.indexDocument(302, "pojedynczy dokument", null, 2);
+        index.indexDocument(201, "James Bond", "7", 6);
+        index.commit();
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " nullPolicy=collapse}*:*", "sort", "price asc", "rows", "2"),
+                        "*[count(//doc)=2]",
+                        "((//str[@name='id'])[1])/text()=302",
+                        "((//str[@name='id'])[2])/text()=102"));
+    }
+
+    @Test
+    public void shouldReturnBestDocumentsDirectlyFromQueueWithRankQuery() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", 6);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", "9", 3);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field -> {
+            SolrQueryRequest request = req("q", "*:*", "fq", "{!fastCollapse field=" + field + " exactCount=true}*:*", "sort", "price asc",
+                    "rows", "3", "rq", "{!fastCollapseRank}");
+            assertQ(request,
+                    "*[count(//doc)=3]",
+                    "//result[@numFound='4']",
+                    "((//str[@name='id'])[1])/text()=102",
+                    "((//str[@name='id'])[2])/text()=201",
+                    "((//str[@name='id'])[3])/text()=301");
+            assertQueueHandedOver(request);
+        });
+    }
+
+    @Test
+    public void shouldHandOverQueueWhenSolrWrapsTheTopDocsCollector() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", 6);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", "9", 3);
+
+        // expect
+        // scores add a max score collector, a time limit a time limiting one around the top docs collector
+        Stream.of(new String[]{"fl", "id,score"}, new String[]{"timeAllowed", "60000"}).forEach(wrapping -> {
+            SolrQueryRequest request = req("q", "*:*", "fq", "{!fastCollapse field=variant exactCount=true}*:*", "sort", "price asc",
+                    "rows", "3", "rq", "{!fastCollapseRank}", wrapping[0], wrapping[1]);
+            assertQ(Arrays.toString(wrapping), request,
+                    "*[count(//doc)=3]",
+                    "//result[@numFound='4']",
+                    "((//str[@name='id'])[1])/text()=102",
+                    "((//str[@name='id'])[2])/text()=201",
+                    "((//str[@name='id'])[3])/text()=301");
+            assertQueueHandedOver(request);
+        });
+        assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant}*:*", "sort", "price asc", "rows", "3",
+                "rq", "{!fastCollapseRank}", "fl", "id,score"),
+                "*[count(//float[@name='score'])=3]",
+                "//result[@maxScore='1.0']");
+    }
+
+    private void assertQueueHandedOver(SolrQueryRequest request) {
+        HeapTopDocsCollector collector = (HeapTopDocsCollector) request.getContext().get(COLLAPSING_HEAP_COLLECTOR);
+        assertTrue(collector.isHandedOver());
+        // the heads were not replayed to Solr's top docs collector
+        assertFalse(request.getContext().containsKey(COLLAPSING_REQUEST_TOTAL_HITS));
+    }
+
+    @Test
+    public void shouldExportAllHeadsAndDocumentsWithoutVariant() throws Exception {
+        //given
+        index.indexDocument(101, "koń", "1234567", 5);
+        index.indexDocument(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 4);
+        index.indexDocument(201, "James Bond", "7", 6);
+        index.indexDocument(202, "Ethan Hunt", "7", 2);
+        index.indexDocumentAndCommit(103, "zebra", "1234567", 3);
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 7);
+
+        // expect: heads of both groups and both documents without a value, committed in three segments
+        for (String field : COLLAPSE_FIELD) {
+            assertJQ(req("qt", "/export", "q", "*:*", "fq", "{!fastCollapse field=" + field + "}*:*",
+                    "sort", "price asc", "fl", "id,price"),
+                    "/response/numFound==4",
+                    "/response/docs==[{'id':'102','price':1.0},{'id':'202','price':2.0},{'id':'1','price':4.0},{'id':'2','price':7.0}]");
+        }
+    }
+
+    @Test
+    public void shouldCollapseByFunctionOfPrice() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", null, 12);
+        index.indexDocumentAndCommit(102, "antylopa", null, 15);
+        index.indexDocumentAndCommit(201, "James Bond", null, 3);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", null, 25);
+
+        // expect
+        Lists.newArrayList("false", "true").forEach(memoizeKeys ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse key='floor(div(price,10))' memoizeKeys=" + memoizeKeys + " exactCount=true}*:*",
+                        "sort", "price asc"),
+                        "*[count(//doc)=3]",
+                        "//result[@numFound='3']",
+                        "((//str[@name='id'])[1])/text()=201",
+                        "((//str[@name='id'])[2])/text()=101",
+                        "((//str[@name='id'])[3])/text()=301"));
+        assertTrue(FunctionKeys.memoizedSegments() > 0);
+    }
+
+    @Test
+    public void shouldComputeMemoizedKeysAgainAfterDocValuesUpdate() throws Exception {
+        //given
+        ValueSource popularity = new LongFieldSource("popularity");
+        try (Directory directory = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            Document document = new Document();
+            document.add(new StringField("id", "101", Field.Store.NO));
+            document.add(new NumericDocValuesField("popularity", 1));
+            writer.addDocument(document);
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                assertEquals(FunctionKeys.toKey(1), memoizedKey(reader, popularity));
+
+                //when
+                writer.updateNumericDocValue(new Term("id", "101"), "popularity", 2);
+                try (DirectoryReader updated = DirectoryReader.openIfChanged(reader, writer)) {
+
+                    //then
+                    assertEquals(FunctionKeys.toKey(2), memoizedKey(updated, popularity));
+                    assertEquals(FunctionKeys.toKey(1), memoizedKey(reader, popularity));
+                }
+            }
+        }
+    }
+
+    private long memoizedKey(IndexReader reader, ValueSource valueSource) throws IOException {
+        SortedDocValuesHash keys = new FunctionKeys(valueSource, new IndexSearcher(reader), true).create(reader.leaves().get(0));
+        assertTrue(keys.advanceExact(0));
+        return keys.key();
+    }
+
+    @Test
+    public void shouldPersistMemoizedKeysAndDeleteThemAfterMerge() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", null, 12);
+        index.indexDocumentAndCommit(102, "antylopa", null, 15);
+        index.indexDocumentAndCommit(201, "James Bond", null, 3);
+        String functionFilter = "{!fastCollapse key='floor(div(price,10))' memoizeKeys=true exactCount=true}*:*";
+        Path keysDirectory = Paths.get(h.getCore().getDataDir(), KeySidecars.DIRECTORY);
+
+        //when
+        assertQ(req("q", "*:*", "fq", functionFilter, "sort", "price asc"), "//result[@numFound='2']");
+
+        //then
+        assertEquals(3, segments());
+        assertEquals(3, keyFiles(keysDirectory));
+
+        //when
+        assertU(optimize());
+        assertQ(req("q", "*:*", "fq", functionFilter, "sort", "price asc"), "//result[@numFound='2']");
+
+        //then files of merged segments are deleted, the merge policy may leave a segment as it is
+        assertTrue(segments() < 3);
+        assertEquals(segments(), keyFiles(keysDirectory));
+    }
+
+    @Test
+    public void shouldMapPersistedKeysAndIgnoreFilesWithMismatchedHeader() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", null, 12);
+        index.indexDocumentAndCommit(102, "antylopa", null, 15);
+        index.indexDocumentAndCommit(201, "James Bond", null, 3);
+        String functionFilter = "{!fastCollapse key='floor(div(price,10))' memoizeKeys=true exactCount=true}*:*";
+        Path keysDirectory = Paths.get(h.getCore().getDataDir(), KeySidecars.DIRECTORY);
+        assertQ(req("q", "*:*", "fq", functionFilter, "sort", "price asc"), "//result[@numFound='2']");
+        assertEquals(0, FunctionKeys.mappedColumns());
+
+        //when keys are no longer in memory, as after a restart
+        FunctionKeys.clearColumns();
+
+        //then they are mapped from files
+        assertQ(req("q", "*:*", "fq", functionFilter, "sort", "price asc"),
+                "//result[@numFound='2']",
+                "((//result/doc/str[@name='id'])[1])/text()=201",
+                "((//result/doc/str[@name='id'])[2])/text()=101");
+        assertEquals(3, FunctionKeys.mappedColumns());
+
+        //when the doc values generation in the header of one file does not match its segment
+        Path keyFile;
+        try (Stream<Path> files = java.nio.file.Files.list(keysDirectory)) {
+            keyFile = files.filter(file -> file.getFileName().toString().endsWith(".keys")).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(keyFile, StandardOpenOption.WRITE)) {
+            // magic, version and the segment id precede the generation
+            channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, 42), 2 * Integer.BYTES + StringHelper.ID_LENGTH);
+        }
+        FunctionKeys.clearColumns();
+
+        //then the file is ignored and its keys are computed again
+        assertQ(req("q", "*:*", "fq", functionFilter, "sort", "price asc"),
+                "//result[@numFound='2']",
+                "((//result/doc/str[@name='id'])[1])/text()=201",
+                "((//result/doc/str[@name='id'])[2])/text()=101");
+        assertEquals(2, FunctionKeys.mappedColumns());
+    }
+
+    private int segments() throws IOException {
+        return h.getCore().withSearcher(searcher -> searcher.getTopReaderContext().leaves().size());
+    }
+
+    private long keyFiles(Path directory) throws Exception {
+        try (Stream<Path> files = java.nio.file.Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".keys")).count();
+        }
+    }
+
+    @Test
+    public void shouldCollapseUnderAlternativeSortsInSinglePass() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+        index.indexDocumentAndCommit(202, "Ethan Hunt", "7", 6);
+        index.indexDocumentAndCommit(301, "pojedynczy dokument", null, 3);
+
+        // expect
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "*:*", "fq", "{!fastCollapse field=" + field + " exactCount=true}*:*", "sort", "price desc",
+                        "rows", "3", "fastCollapse.sort.cheapest", "price asc", "qt", "/collapse"),
+                        "*[count(//result[@name='response']/doc)=3]",
+                        "((//result[@name='response']/doc/str[@name='id'])[1])/text()=202",
+                        "((//result[@name='response']/doc/str[@name='id'])[2])/text()=101",
+                        "((//result[@name='response']/doc/str[@name='id'])[3])/text()=301",
+                        "//lst[@name='collapsedSorts']/result[@name='cheapest'][@numFound='3']",
+                        "((//result[@name='cheapest']/doc/str[@name='id'])[1])/text()=102",
+                        "((//result[@name='cheapest']/doc/str[@name='id'])[2])/text()=301",
+                        "((//result[@name='cheapest']/doc/str[@name='id'])[3])/text()=201"));
+    }
+
+    @Test
+    public void shouldReturnScoresOfHeadsSortedByField() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", "seller101", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", "seller102", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", "seller201", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", "seller202", 6);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", "9", "seller301", 3);
+
+        // expect
+        // the boosted query scores the price only when scores are needed, the sort does not need them but the response does;
+        // Solr scores the top documents again unless a rank query returns them, then they are the scores of the replay
+        List<String[]> requests = new ArrayList<>();
+        COLLAPSE_FIELD.forEach(field -> {
+            requests.add(new String[]{"fq", "{!fastCollapse field=" + field + "}*:*", "sort", "price asc"});
+            requests.add(new String[]{"fq", "{!fastCollapse field=" + field + "}*:*", "sort", "price asc", "rq", "{!fastCollapseRank}"});
+        });
+        requests.add(new String[]{"fq", "{!fastCollapse field=variant}*:*", "sort", "price asc, id asc", "cursorMark", "*"});
+        requests.add(new String[]{"fq", "{!fastCollapse field=variant,seller}*:*", "sort", "price asc"});
+        requests.forEach(request ->
+                assertQ(Arrays.toString(request), req(params("q", "{!boost b=price}*:*", "fl", "id,score", "rows", "3"), request),
+                        "*[count(//doc)=3]",
+                        "//doc[1][str[@name='id']='102']/float[@name='score'][.='1.0']",
+                        "//doc[2][str[@name='id']='201']/float[@name='score'][.='2.0']",
+                        "//doc[3][str[@name='id']='301']/float[@name='score'][.='3.0']"));
+    }
+
+    @Test
+    public void shouldCollapseOnScoresWhenOnlyCollapseSortNeedsThem() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", "seller101", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", "seller102", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", "seller201", 2);
+        index.indexDocumentAndCommit(202, "Jason Bourne", "7", "seller202", 6);
+        index.indexDocumentAndCommit(301, "Ethan Hunt", "9", "seller301", 3);
+
+        // expect
+        // no score in fl, heads are the most relevant documents of their groups, score desc alone is no sort
+        List<String[]> requests = new ArrayList<>();
+        COLLAPSE_FIELD.forEach(field -> requests.add(new String[]{"fq", "{!fastCollapse field=" + field + "}*:*", "sort", "score desc, id asc"}));
+        requests.add(new String[]{"fq", "{!fastCollapse field=variant}*:*", "sort", "score desc, id asc", "cursorMark", "*"});
+        requests.add(new String[]{"fq", "{!fastCollapse field=variant,seller}*:*", "sort", "score desc, id asc"});
+        requests.forEach(request ->
+                assertQ(Arrays.toString(request), req(params("q", "{!boost b=price}*:*", "fl", "id", "rows", "3"), request),
+                        "*[count(//doc)=3]",
+                        "((//str[@name='id'])[1])/text()=202",
+                        "((//str[@name='id'])[2])/text()=101",
+                        "((//str[@name='id'])[3])/text()=301"));
+        // the main sort by price does not score, the alternative sort by relevance does
+        COLLAPSE_FIELD.forEach(field ->
+                assertQ(req("q", "{!boost b=price}*:*", "fq", "{!fastCollapse field=" + field + "}*:*", "sort", "price asc",
+                        "rows", "3", "fl", "id", "fastCollapse.sort.relevant", "score desc, id asc", "qt", "/collapse"),
+                        "((//result[@name='response']/doc/str[@name='id'])[1])/text()=102",
+                        "((//result[@name='relevant']/doc/str[@name='id'])[1])/text()=202",
+                        "((//result[@name='relevant']/doc/str[@name='id'])[2])/text()=101",
+                        "((//result[@name='relevant']/doc/str[@name='id'])[3])/text()=301"));
+    }
+
+    @Test
+    public void shouldCountRequestsAndGroupsInMetrics() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+        MetricRegistry registry = h.getCore().getSolrMetricsContext().getMetricRegistry();
+        Map<String, String[]> strategyRequests = new LinkedHashMap<>();
+        strategyRequests.put(CollapseCounters.FAST, new String[]{"fq", "{!fastCollapse field=variant exactCount=true}*:*", "sort", "price asc"});
+        strategyRequests.put(CollapseCounters.SUM, new String[]{"fq", "{!fastCollapse field=variant}*:*"});
+        strategyRequests.put(CollapseCounters.FULL, new String[]{"fq", "{!fastCollapse field=variant}*:*", "sort", "price asc, id asc", "cursorMark", "*"});
+        strategyRequests.put(CollapseCounters.MULTI_LEVEL, new String[]{"fq", "{!fastCollapse field=variant,seller}*:*", "sort", "price asc"});
+        strategyRequests.put(CollapseCounters.MIN_MAX, new String[]{"fq", "{!fastCollapse field=variant min=price}*:*", "sort", "id desc"});
+
+        for (Map.Entry<String, String[]> strategyRequest : strategyRequests.entrySet()) {
+            String strategy = strategyRequest.getKey();
+            long requests = sumCounts(registry.getCounters((name, metric) -> name.endsWith(".requests." + strategy)));
+            long hitRecords = sumCounts(registry.getHistograms((name, metric) -> name.endsWith(".hits")));
+            long groupRecords = sumCounts(registry.getHistograms((name, metric) -> name.endsWith(".groups")));
+            long finishRecords = sumCounts(registry.getTimers((name, metric) -> name.endsWith(".time.finish")));
+
+            //when
+            ModifiableSolrParams params = params("q", "*:*", "qt", "/collapse");
+            params.add(params(strategyRequest.getValue()));
+            assertQ(strategy, req(params), "*[count(//doc)=2]");
+
+            //then
+            assertEquals(strategy, requests + 1, sumCounts(registry.getCounters((name, metric) -> name.endsWith(".requests." + strategy))));
+            assertEquals(strategy, hitRecords + 1, sumCounts(registry.getHistograms((name, metric) -> name.endsWith(".hits"))));
+            assertEquals(strategy, groupRecords + 1, sumCounts(registry.getHistograms((name, metric) -> name.endsWith(".groups"))));
+            assertEquals(strategy, finishRecords + 1, sumCounts(registry.getTimers((name, metric) -> name.endsWith(".time.finish"))));
+        }
+    }
+
+    @Test
+    public void shouldDescribeCollapseInDebugSection() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+
+        //when
+        assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant exactCount=true}*:*", "sort", "price asc",
+                        "qt", "/collapse", "debugQuery", "true"),
+                "*[count(//result/doc)=2]",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='strategy'][.='fast']",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='reason'][.='sort and rows']",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='numFound'][.='exact']",
+                "//lst[@name='debug']/lst[@name='collapse']/long[@name='scanned'][.='3']",
+                "//lst[@name='debug']/lst[@name='collapse']/long[@name='groups'][.='2']",
+                "//lst[@name='debug']/lst[@name='collapse']/lst[@name='timing']/double[@name='collect']");
+    }
+
+    @Test
+    public void shouldDescribeSegmentsAndFinishOfOtherStrategiesInDebugSection() throws Exception {
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+
+        //when
+        assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant}*:*", "qt", "/collapse", "debugQuery", "true"),
+                "*[count(//result/doc)=2]",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='strategy'][.='sum']",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='numFound'][.='exact']",
+                "//lst[@name='debug']/lst[@name='collapse']/long[@name='scanned'][.='3']",
+                "//lst[@name='debug']/lst[@name='collapse']/long[@name='groups'][.='2']",
+                "//lst[@name='debug']/lst[@name='collapse']/lst[@name='timing']/lst[@name='segments']/double",
+                "//lst[@name='debug']/lst[@name='collapse']/lst[@name='timing']/double[@name='finish']");
+        assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant}*:*", "sort", "price asc, id asc", "cursorMark", "*",
+                        "qt", "/collapse", "debugQuery", "true"),
+                "*[count(//result/doc)=2]",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='strategy'][.='full']",
+                "//lst[@name='debug']/lst[@name='collapse']/str[@name='numFound'][.='totalHits']",
+                "//lst[@name='debug']/lst[@name='collapse']/long[@name='groups'][.='2']",
+                "//lst[@name='debug']/lst[@name='collapse']/lst[@name='timing']/lst[@name='segments']/double",
+                "//lst[@name='debug']/lst[@name='collapse']/lst[@name='timing']/double[@name='finish']");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldCaptureCollapsingRequestsToFile() throws Exception {
+        //given
+        Path captureDirectory = createTempDir();
+        deleteCore();
+        System.setProperty("tests.collapse.captureFile", captureDirectory.resolve("capture.%g.jsonl").toString());
+        try {
+            initCore("solrconfig.xml", "schema.xml", Files.createTempDir().getAbsolutePath());
+        } finally {
+            System.clearProperty("tests.collapse.captureFile");
+        }
+        index = new IndexingUtility(h);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+
+        //when
+        assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant exactCount=true}*:*", "sort", "price asc", "qt", "/collapse"),
+                "//result[@numFound='2']");
+
+        //then
+        List<String> lines = java.nio.file.Files.readAllLines(captureDirectory.resolve("capture.0.jsonl"));
+        assertEquals(1, lines.size());
+        Map<String, Object> record = (Map<String, Object>) ObjectBuilder.fromJSON(lines.get(0));
+        assertEquals("fast", record.get("strategy"));
+        Map<String, Object> params = (Map<String, Object>) record.get("params");
+        assertEquals(Lists.newArrayList("{!fastCollapse field=variant exactCount=true}*:*"), params.get("fq"));
+        assertEquals(Lists.newArrayList("price asc"), params.get("sort"));
+        assertEquals(3L, record.get("hits"));
+        assertEquals(2L, record.get("groups"));
+        assertEquals(2L, record.get("numFound"));
+    }
+
+    @Test
+    public void shouldRecordCollapseEventInFlightRecording() throws Exception {
+        assumeTrue("JFR is not available", isJfrAvailable());
+        //given
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+        Path recordingFile = createTempDir().resolve("collapse.jfr");
+
+        //when
+        try (Recording recording = new Recording()) {
+            recording.enable("pl.allegro.search.solr.qparser.Collapse");
+            recording.start();
+            assertQ(req("q", "*:*", "fq", "{!fastCollapse field=variant exactCount=true}*:*", "sort", "price asc"),
+                    "*[count(//doc)=2]");
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        //then
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+            if (event.getEventType().getName().equals("pl.allegro.search.solr.qparser.Collapse")) {
+                events.add(event);
+            }
+        }
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals("fast", event.getString("strategy"));
+        assertEquals("variant", event.getString("field"));
+        assertTrue(event.getString("sort"), event.getString("sort").contains("price"));
+        assertEquals(3, event.getLong("scanned"));
+        assertEquals(2, event.getLong("groups"));
+        assertTrue(event.getBoolean("exactCount"));
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Recording");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void shouldReportCardinalityOfCollapseFields() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 5);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+
+        //then
+        for (String field : COLLAPSE_FIELD) {
+            assertQ(req("qt", "/collapseStats", "field", field, "top", "1"),
+                    "//lst[@name='fields']/lst[@name='" + field + "']/long[@name='maxDoc'][.='4']",
+                    "//lst[@name='fields']/lst[@name='" + field + "']/long[@name='docsWithKey'][.='3']",
+                    "//lst[@name='fields']/lst[@name='" + field + "']/double[@name='nullRatio'][.='0.25']",
+                    "//lst[@name='fields']/lst[@name='" + field + "']/lst[@name='topGroups']/long[@name='1234567'][.='2']",
+                    "//lst[@name='fields']/lst[@name='" + field + "']/arr[@name='segments']/lst/lst[@name='groupSizes']");
+        }
+        assertQ(req("qt", "/collapseStats", "field", "variant"),
+                "//lst[@name='fields']/lst[@name='variant']/long[@name='distinctKeys'][.='2']",
+                "//lst[@name='fields']/lst[@name='variant']/bool[@name='isDistinctExact'][.='true']",
+                "//lst[@name='fields']/lst[@name='variant']/lst[@name='memory']/long[@name='queueBytesPerRow'][.='"
+                        + FastCollapsingQueryFilter.queueBytesPerRow(1) + "']");
+        assertTrue(CollapseFieldStats.cachedSegments() > 0);
+    }
+
+    @Test
+    public void shouldComputeCollapseFieldStatsAgainAfterDocValuesUpdate() throws Exception {
+        //given
+        try (Directory directory = new ByteBuffersDirectory();
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            for (String id : new String[]{"101", "102"}) {
+                Document document = new Document();
+                document.add(new StringField("id", id, Field.Store.NO));
+                document.add(new NumericDocValuesField("popularity", 1));
+                writer.addDocument(document);
+            }
+            writer.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                assertEquals(1, collapseFieldStats(reader).getDistinctKeys());
+
+                //when
+                writer.updateNumericDocValue(new Term("id", "102"), "popularity", 2);
+                try (DirectoryReader updated = DirectoryReader.openIfChanged(reader, writer)) {
+
+                    //then
+                    assertEquals(2, collapseFieldStats(updated).getDistinctKeys());
+                    assertEquals(1, collapseFieldStats(reader).getDistinctKeys());
+                }
+            }
+        }
+    }
+
+    private CollapseFieldStats collapseFieldStats(IndexReader reader) throws IOException {
+        return CollapseFieldStats.of(reader.leaves().get(0), "popularity", SortedDocValuesHash.KeyType.NUMERIC);
+    }
+
+    @Test
+    public void shouldReturnSameResponseToConcurrentIdenticalRequests() throws Exception {
+        //given
+        index.indexDocumentAndCommit(null, "pojedynczy dokument", null, 5);
+        index.indexDocumentAndCommit(101, "koń", "1234567", 5);
+        index.indexDocumentAndCommit(102, "antylopa", "1234567", 1);
+        index.indexDocumentAndCommit(201, "James Bond", "7", 4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            //when
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                responses.add(executor.submit(() -> h.query(req("q", "*:*", "fq", "{!fastCollapse field=variant exactCount=true}*:*",
+                        "sort", "price asc", "fl", "id", "qt", "/coalesce"))));
+            }
+
+            //then
+            for (Future<String> response : responses) {
+                String xml = response.get();
+                assertNull(h.validateXPath(xml,
+                        "//result[@numFound='3']",
+                        "//result/doc[1]/str[@name='id'][.='102']",
+                        "//result/doc[2]/str[@name='id'][.='201']",
+                        "//result/doc[3]/str[@name='id'][.='1']"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldWaitForIdenticalRequestInFlightInsteadOfRunningIt() throws Exception {
+        //given
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>(10000);
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch leaderReleased = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<RequestCoalescer.Result<String>> leader = executor.submit(() -> coalescer.execute("q", () -> {
+                computations.incrementAndGet();
+                leaderStarted.countDown();
+                leaderReleased.await();
+                return "response";
+            }));
+            leaderStarted.await();
+            assertEquals(1, coalescer.inFlight());
+
+            //when
+            AtomicReference<Thread> waiterThread = new AtomicReference<>();
+            Future<RequestCoalescer.Result<String>> waiter = executor.submit(() -> {
+                waiterThread.set(Thread.currentThread());
+                return coalescer.execute("q", () -> {
+                    computations.incrementAndGet();
+                    return "own response";
+                });
+            });
+            // the waiter is parked on the value of the leader
+            while (waiterThread.get() == null || waiterThread.get().getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+            leaderReleased.countDown();
+
+            //then
+            assertFalse(leader.get().isCoalesced());
+            assertTrue(waiter.get().isCoalesced());
+            assertEquals("response", waiter.get().getValue());
+            assertEquals(1, computations.get());
+            assertEquals(0, coalescer.inFlight());
+        } finally {
+            leaderReleased.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private long sumCounts(Map<String, ? extends Counting> metrics) {
+        return metrics.values().stream().mapToLong(Counting::getCount).sum();
+    }
+
 }
@@ -18,12 +18,22 @@ class IndexingUtility {
         commit();
     }
 
+    void indexDocumentAndCommit(Integer id, String name, String variant, String seller, int price) {
+        indexDocument(id, name, variant, seller, price);
+        commit();
+    }
+
     void indexDocument(Integer id, String name, String variant, int price) {
+        indexDocument(id, name, variant, null, price);
+    }
+
+    void indexDocument(Integer id, String name, String variant, String seller, int price) {
         h.update("<add>\n" +
                 "  <doc>\n" +
                 "    <field name=\"id\">" + getIndexingId(id) + "</field>\n" +
                 "    <field name=\"name\">" + name + "</field>\n" +
                 ((variant != null)? indexVariant(variant) :"") +
+                ((seller != null)? "    <field name=\"seller\">" + seller + "</field>\n" :"") +
                 "    <field name=\"price\">" + price + "</field>\n" +
                 "  </doc>\n" +
                 "</add>\n" +
@@ -0,0 +1,14 @@
+package pl.allegro.search.solr.qparser;
+
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+
+/**
+ * Ignores daemon threads of Java Flight Recorder, started by the first recording and running until the JVM exits.
+ */
+public class JfrThreadsFilter implements ThreadFilter {
+
+    @Override
+    public boolean reject(Thread thread) {
+        return thread.getName().startsWith("JFR ");
+    }
+}
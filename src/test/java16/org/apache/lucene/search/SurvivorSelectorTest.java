@@ -0,0 +1,82 @@
+package org.apache.lucene.search;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with the Java 16 classes of the multi-release jar and <code>--add-modules jdk.incubator.vector</code>,
+ * see the <code>java16Test</code> task.
+ */
+public class SurvivorSelectorTest {
+
+    private static final int BATCH = 64;
+
+    @Test
+    public void shouldSelectTheSameSurvivorsWithVectorAndScalarLoops() {
+        //given
+        Random random = new Random(0);
+        double[] values = new double[BATCH];
+        double[] bottoms = {0.25, 0.5, 0d, -0d, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+        for (int round = 0; round < 10_000; round++) {
+            // a length which is not a multiple of the vector size leaves a tail for the scalar part of the vector loop
+            int length = 1 + random.nextInt(BATCH);
+            double bottom = bottoms[random.nextInt(bottoms.length)];
+            for (int i = 0; i < length; i++) {
+                values[i] = value(random, bottom);
+            }
+            for (double sign : new double[]{1d, -1d}) {
+                //when
+                int[] vectorSurvivors = new int[BATCH];
+                int[] scalarSurvivors = new int[BATCH];
+                int vectorCount = VectorSurvivors.select(values, length, sign, bottom, vectorSurvivors);
+                int scalarCount = ScalarSurvivors.select(values, length, sign, bottom, scalarSurvivors);
+
+                //then
+                assertArrayEquals("values " + Arrays.toString(Arrays.copyOf(values, length)) + ", sign " + sign + ", bottom " + bottom,
+                        Arrays.copyOf(scalarSurvivors, scalarCount), Arrays.copyOf(vectorSurvivors, vectorCount));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepNaNValuesAndTiesWithTheBottom() {
+        //given
+        double[] values = new double[BATCH];
+        Arrays.fill(values, 1d);
+        values[3] = Double.NaN;
+        values[17] = 0.5;
+        values[63] = 0.25;
+        int[] survivors = new int[BATCH];
+
+        //when
+        int count = VectorSurvivors.select(values, BATCH, 1d, 0.5, survivors);
+
+        //then
+        assertArrayEquals(new int[]{3, 17, 63}, Arrays.copyOf(survivors, count));
+        assertTrue(SurvivorSelector.isVectorized());
+    }
+
+    /**
+     * Mostly values worse than the bottom, so that whole vectors are skipped, with NaN values, ties and zeros of both signs.
+     */
+    private static double value(Random random, double bottom) {
+        switch (random.nextInt(10)) {
+            case 0:
+                return Double.NaN;
+            case 1:
+                return bottom;
+            case 2:
+                return random.nextBoolean() ? 0d : -0d;
+            case 3:
+                return random.nextDouble() - 0.5;
+            default:
+                return random.nextBoolean() ? 1d + random.nextDouble() : -1d - random.nextDouble();
+        }
+    }
+}